@@ -0,0 +1,119 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins.benchmark;
+
+import com.hpe.cloudfoundryjenkins.FilePathApplicationArchive;
+import hudson.FilePath;
+import hudson.Util;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fingerprints synthetic app directories of various shapes, which is what happens before every upload.
+ * The cold benchmark hashes every file, the warm one finds the digests in the file hash index of the previous run.
+ * The trees are generated from a fixed seed, so that every run measures the same files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApplicationArchiveBenchmark {
+
+    /**
+     * flat: 2000 files of 2 KB in a single directory.
+     * deep: 2000 files of 2 KB, 5 per directory, in directories nested 4 levels deep.
+     * large: 8 files of 16 MB.
+     */
+    @Param({"flat", "deep", "large"})
+    public String shape;
+
+    private File root;
+    private FilePath appDirectory;
+    private FilePath indexFile;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException, InterruptedException {
+        root = Util.createTempDir();
+        File app = new File(root, "app");
+        Random random = new Random(42);
+        if (shape.equals("flat")) {
+            for (int i = 0; i < 2000; i++) {
+                writeFile(new File(app, "file-" + i + ".class"), 2048, random);
+            }
+        } else if (shape.equals("deep")) {
+            for (int i = 0; i < 2000; i++) {
+                String dir = (i / 5 % 4) + "/" + (i / 20 % 5) + "/" + (i / 100 % 5) + "/" + (i / 500);
+                writeFile(new File(app, dir + "/file-" + i + ".class"), 2048, random);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                writeFile(new File(app, "lib-" + i + ".jar"), 16 * 1024 * 1024, random);
+            }
+        }
+        appDirectory = new FilePath(app);
+        indexFile = new FilePath(new File(root, "app.index"));
+        // Populates the index for the warm benchmark
+        FilePathApplicationArchive.fromDirectory(appDirectory, indexFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        Util.deleteRecursive(root);
+    }
+
+    @Benchmark
+    public void cold(Blackhole blackhole) throws IOException, InterruptedException {
+        consume(FilePathApplicationArchive.fromDirectory(appDirectory, null), blackhole);
+    }
+
+    @Benchmark
+    public void warm(Blackhole blackhole) throws IOException, InterruptedException {
+        consume(FilePathApplicationArchive.fromDirectory(appDirectory, indexFile), blackhole);
+    }
+
+    private static void consume(ApplicationArchive archive, Blackhole blackhole) {
+        for (ApplicationArchive.Entry entry : archive.getEntries()) {
+            blackhole.consume(entry.getSha1Digest());
+        }
+    }
+
+    private static void writeFile(File file, int size, Random random) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] buffer = new byte[Math.min(size, 64 * 1024)];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        // Old enough for the file hash index to trust its modification time
+        file.setLastModified(System.currentTimeMillis() - 60000);
+    }
+}
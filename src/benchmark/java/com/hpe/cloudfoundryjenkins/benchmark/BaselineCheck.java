@@ -0,0 +1,87 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins.benchmark;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the JMH results of a run with the baseline results that are committed with the sources,
+ * and exits with an error if a benchmark got slower than the baseline by more than the given tolerance.
+ * If there is no baseline yet, the results of the run become the baseline, to be committed from the reference machine.
+ * To update it after an intended change, delete it and run the benchmarks again.
+ * <p>
+ * Usage: BaselineCheck &lt;results.json&gt; &lt;baseline.json&gt; &lt;tolerance, e.g. 0.2 for 20%&gt;
+ */
+public class BaselineCheck {
+
+    public static void main(String[] args) throws IOException {
+        File resultsFile = new File(args[0]);
+        File baselineFile = new File(args[1]);
+        double tolerance = Double.parseDouble(args[2]);
+
+        if (!baselineFile.exists()) {
+            FileUtils.copyFile(resultsFile, baselineFile);
+            System.out.println("No baseline at " + baselineFile + ", the results of this run were written to it. "
+                    + "Commit it if they come from the reference machine.");
+            return;
+        }
+
+        Map<String, JSONObject> results = readResults(resultsFile);
+        Map<String, JSONObject> baseline = readResults(baselineFile);
+
+        int regressions = 0;
+        for (Map.Entry<String, JSONObject> result : results.entrySet()) {
+            JSONObject base = baseline.get(result.getKey());
+            if (base == null) {
+                System.out.println("NEW         " + result.getKey());
+                continue;
+            }
+            double score = result.getValue().getJSONObject("primaryMetric").getDouble("score");
+            double baseScore = base.getJSONObject("primaryMetric").getDouble("score");
+            // For throughput higher is better, for the other modes lower is better
+            double change = result.getValue().getString("mode").equals("thrpt")
+                    ? (baseScore - score) / baseScore
+                    : (score - baseScore) / baseScore;
+            String status = "OK         ";
+            if (change > tolerance) {
+                status = "REGRESSION ";
+                regressions++;
+            }
+            System.out.println(String.format("%s%s: %.3f -> %.3f %s (%+.1f%%)", status, result.getKey(), baseScore,
+                    score, result.getValue().getJSONObject("primaryMetric").getString("scoreUnit"), change * 100));
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) are more than " + Math.round(tolerance * 100)
+                    + "% slower than the baseline.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the results of a JMH JSON file, by benchmark name and parameters.
+     */
+    private static Map<String, JSONObject> readResults(File file) throws IOException {
+        Map<String, JSONObject> results = new TreeMap<String, JSONObject>();
+        JSONArray array = JSONArray.fromObject(FileUtils.readFileToString(file, "UTF-8"));
+        for (int i = 0; i < array.size(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            StringBuilder key = new StringBuilder(result.getString("benchmark"));
+            if (result.has("params")) {
+                Map<String, Object> params = new TreeMap<String, Object>(result.getJSONObject("params"));
+                key.append(params);
+            }
+            results.put(key.toString(), result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins.benchmark;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import com.hpe.cloudfoundryjenkins.DeploymentInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the deployment info of an app from a parsed manifest and from the Jenkins configuration,
+ * with a growing number of env vars and services. Token macros are not expanded, since they need a build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeploymentInfoBenchmark {
+
+    @Param({"512", "512M", "1gb"})
+    public String memory;
+
+    @Param({"0", "10", "100"})
+    public int envVarsAndServices;
+
+    private final PrintStream logger = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+            // The warnings are not part of the benchmark
+        }
+    });
+
+    private Map<String, Object> appInfo;
+    private ManifestChoice jenkinsConfig;
+
+    @Setup(Level.Trial)
+    public void createConfigs() {
+        Map<String, String> envVars = new HashMap<String, String>();
+        List<String> servicesNames = new ArrayList<String>();
+        List<EnvironmentVariable> configEnvVars = new ArrayList<EnvironmentVariable>();
+        List<ServiceName> configServicesNames = new ArrayList<ServiceName>();
+        for (int i = 0; i < envVarsAndServices; i++) {
+            envVars.put("VAR_" + i, "value-" + i);
+            servicesNames.add("service-" + i);
+            configEnvVars.add(new EnvironmentVariable("VAR_" + i, "value-" + i));
+            configServicesNames.add(new ServiceName("service-" + i));
+        }
+
+        appInfo = new HashMap<String, Object>();
+        appInfo.put("name", "hello-java");
+        // The YAML parser gives an Integer when there is no unit
+        appInfo.put("memory", memory.matches("\\d+") ? (Object) Integer.valueOf(memory) : memory);
+        appInfo.put("host", "hello-java");
+        appInfo.put("instances", 2);
+        appInfo.put("path", "target/hello-java-1.0.war");
+        appInfo.put("env", envVars);
+        appInfo.put("services", servicesNames);
+
+        jenkinsConfig = new ManifestChoice("jenkinsConfig", null, "hello-java", 512, "hello-java", 2, 60, false,
+                "target/hello-java-1.0.war", "", "", "", "", configEnvVars, configServicesNames);
+    }
+
+    @Benchmark
+    public DeploymentInfo fromManifest() throws Exception {
+        return new DeploymentInfo(logger, appInfo, "jenkins-build", "example.com", "manifest.yml");
+    }
+
+    @Benchmark
+    public DeploymentInfo fromJenkinsConfig() throws Exception {
+        return new DeploymentInfo(logger, jenkinsConfig, "jenkins-build", "example.com");
+    }
+}
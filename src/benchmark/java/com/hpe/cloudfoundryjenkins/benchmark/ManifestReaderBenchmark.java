@@ -0,0 +1,84 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins.benchmark;
+
+import com.hpe.cloudfoundryjenkins.ManifestReader;
+import hudson.FilePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses generated manifests with 1 to 1000 apps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestReaderBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int apps;
+
+    private File manifest;
+
+    @Setup(Level.Trial)
+    public void writeManifest() throws IOException {
+        manifest = File.createTempFile("manifest", ".yml");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+        try {
+            writer.write("applications:\n");
+            for (int i = 0; i < apps; i++) {
+                writer.write("- name: app-" + i + "\n");
+                writer.write("  memory: " + (i % 2 == 0 ? "512M" : "1G") + "\n");
+                writer.write("  instances: " + (1 + i % 3) + "\n");
+                writer.write("  host: host-" + i + "\n");
+                writer.write("  path: apps/app-" + i + "\n");
+                writer.write("  buildpack: https://github.com/cloudfoundry/java-buildpack.git\n");
+                writer.write("  env:\n");
+                writer.write("    JAVA_OPTS: -Xss512k\n");
+                writer.write("    APP_INDEX: \"" + i + "\"\n");
+                writer.write("  services:\n");
+                writer.write("  - mysql-" + i % 5 + "\n");
+                writer.write("  - redis\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteManifest() {
+        if (!manifest.delete()) {
+            manifest.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> parse() throws Exception {
+        return new ManifestReader(new FilePath(manifest)).getApplicationList();
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.Staging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The settings of an app that differ between the target and its deployment: instances, memory, routes, services,
+ * environment variables and staging. They are computed from the state of the app that is read once, so that only the
+ * settings that changed are written.
+ * <p>
+ * Like a push with the cf CLI, the deployment adds to the settings of the app and doesn't remove them: the
+ * environment variables, routes and services that the app has and that the deployment doesn't list are kept.
+ * Only no-route unmaps all the routes of the app. The instances and memory are only changed when the deployment gives
+ * them, so that an app that was scaled by hand is not scaled back to the defaults.
+ * <p>
+ * The changes, and whether the bits of the app changed, tell the cheapest way to deploy it: see {@link Action}.
+ */
+public class AppChanges {
+
+    /**
+     * How an app is deployed, from the cheapest to the most expensive. The settings of the app are always updated
+     * first, and the routes are changed without restarting it.
+     */
+    public enum Action {
+        /**
+         * Nothing to do, the app keeps running.
+         */
+        NONE("none, the app is unchanged"),
+        /**
+         * Only the number of instances changed: the new instances are started, or the extra ones stopped,
+         * and the running ones are left alone.
+         */
+        SCALE("scale in place"),
+        /**
+         * The env vars or memory changed, or the app is stopped: it is restarted with its current droplet.
+         */
+        RESTART("restart without restaging"),
+        /**
+         * The buildpack, command, stack or services changed: the app is staged again. The CF client has no
+         * restage call, so the bits are uploaded again, which only sends the list of their digests since the target
+         * already has all of them, and makes the restart stage the app.
+         */
+        RESTAGE("restage"),
+        /**
+         * The bits changed, or the app is new: they are uploaded, and the app is staged and started.
+         */
+        PUSH("full push");
+
+        private final String description;
+
+        Action(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final String appName;
+    private boolean newApp;
+    private boolean started = true;
+    private int currentInstances;
+    private int instances;
+    private int currentMemory;
+    private int memory;
+    private final Map<String, String> currentEnv;
+    private final Map<String, String> changedEnv = new LinkedHashMap<String, String>();
+    private final List<String> currentUris;
+    private final List<String> addedUris = new ArrayList<String>();
+    private boolean unmapUris;
+    private final List<String> currentServices;
+    private final List<String> addedServices = new ArrayList<String>();
+    private Staging staging;
+
+    private AppChanges(String appName, Map<String, String> currentEnv, List<String> currentUris,
+                       List<String> currentServices) {
+        this.appName = appName;
+        this.currentEnv = currentEnv;
+        this.currentUris = currentUris;
+        this.currentServices = currentServices;
+    }
+
+    /**
+     * Computes the changes to make to an existing app.
+     *
+     * @param app        the current state of the app
+     * @param currentEnv the current environment variables of the app, which are only needed if the deployment
+     *                   has some
+     */
+    public static AppChanges compute(CloudApplication app, Map<String, String> currentEnv,
+                                     DeploymentInfo deploymentInfo) {
+        AppChanges changes = new AppChanges(app.getName(),
+                currentEnv == null ? Collections.<String, String>emptyMap() : currentEnv,
+                app.getUris() == null ? Collections.<String>emptyList() : app.getUris(),
+                app.getServices() == null ? Collections.<String>emptyList() : app.getServices());
+        changes.diff(app.getInstances(), app.getMemory(), deploymentInfo);
+        changes.diffStaging(app.getStaging(), deploymentInfo);
+        changes.started = app.getState() == CloudApplication.AppState.STARTED;
+        return changes;
+    }
+
+    /**
+     * Computes the changes to make to an app that was just created with the memory, routes and services of its
+     * deployment, and with the defaults of the target for the rest.
+     */
+    public static AppChanges computeForNewApp(DeploymentInfo deploymentInfo) {
+        AppChanges changes = new AppChanges(deploymentInfo.getAppName(), Collections.<String, String>emptyMap(),
+                Collections.<String>emptyList(), Collections.<String>emptyList());
+        changes.newApp = true;
+        changes.started = false;
+        changes.currentInstances = 1;
+        changes.instances = deploymentInfo.getInstances();
+        changes.currentMemory = changes.memory = deploymentInfo.getMemory();
+        changes.changedEnv.putAll(deploymentInfo.getEnvVars());
+        return changes;
+    }
+
+    private void diff(int currentInstances, int currentMemory, DeploymentInfo deploymentInfo) {
+        this.currentInstances = currentInstances;
+        this.instances = deploymentInfo.isInstancesSet() ? deploymentInfo.getInstances() : currentInstances;
+        this.currentMemory = currentMemory;
+        this.memory = deploymentInfo.isMemorySet() ? deploymentInfo.getMemory() : currentMemory;
+
+        for (Map.Entry<String, String> envVar : deploymentInfo.getEnvVars().entrySet()) {
+            if (!envVar.getValue().equals(currentEnv.get(envVar.getKey()))) {
+                changedEnv.put(envVar.getKey(), envVar.getValue());
+            }
+        }
+
+        if (deploymentInfo.isNoRoute()) {
+            unmapUris = !currentUris.isEmpty();
+        } else {
+            String uri = deploymentInfo.getHostname() + "." + deploymentInfo.getDomain();
+            if (!containsUri(currentUris, uri)) {
+                addedUris.add(uri);
+            }
+        }
+
+        for (String serviceName : deploymentInfo.getServicesNames()) {
+            if (!currentServices.contains(serviceName)) {
+                addedServices.add(serviceName);
+            }
+        }
+    }
+
+    /**
+     * The stack is only compared when the target tells it, and the buildpack and command when the deployment sets
+     * them, since the target fills them in when the app is staged.
+     */
+    private void diffStaging(Staging currentStaging, DeploymentInfo deploymentInfo) {
+        if (currentStaging == null) {
+            return;
+        }
+        boolean changed = isSet(deploymentInfo.getBuildpack())
+                && !deploymentInfo.getBuildpack().equals(currentStaging.getBuildpackUrl());
+        changed |= isSet(deploymentInfo.getCommand())
+                && !deploymentInfo.getCommand().equals(currentStaging.getCommand());
+        changed |= isSet(deploymentInfo.getStack()) && currentStaging.getStack() != null
+                && !deploymentInfo.getStack().equals(currentStaging.getStack());
+        if (changed) {
+            staging = new Staging(deploymentInfo.getCommand(), deploymentInfo.getBuildpack(),
+                    deploymentInfo.getStack(), deploymentInfo.getTimeout());
+        }
+    }
+
+    private static boolean isSet(String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    /**
+     * The target lists the routes of an app without their scheme, but they may have been created with it.
+     */
+    private static boolean containsUri(List<String> uris, String uri) {
+        for (String existing : uris) {
+            if (existing.equals(uri) || existing.endsWith("://" + uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return !isInstancesChanged() && !isMemoryChanged() && !isEnvChanged() && !isRoutesChanged()
+                && !isServicesChanged() && !isStagingChanged();
+    }
+
+    /**
+     * Returns the cheapest way to deploy the app.
+     *
+     * @param bitsChanged whether the bits of the app may differ from the ones it runs
+     */
+    public Action getAction(boolean bitsChanged) {
+        if (newApp || bitsChanged) {
+            return Action.PUSH;
+        }
+        if (isStagingChanged() || isServicesChanged()) {
+            return Action.RESTAGE;
+        }
+        if (isEnvChanged() || isMemoryChanged() || !started) {
+            return Action.RESTART;
+        }
+        if (isInstancesChanged()) {
+            return Action.SCALE;
+        }
+        return Action.NONE;
+    }
+
+    public boolean isInstancesChanged() {
+        return instances != currentInstances;
+    }
+
+    public boolean isMemoryChanged() {
+        return memory != currentMemory;
+    }
+
+    public boolean isEnvChanged() {
+        return !changedEnv.isEmpty();
+    }
+
+    public boolean isRoutesChanged() {
+        return unmapUris || !addedUris.isEmpty();
+    }
+
+    public boolean isServicesChanged() {
+        return !addedServices.isEmpty();
+    }
+
+    public boolean isStagingChanged() {
+        return staging != null;
+    }
+
+    /**
+     * Makes the changes, with one call per kind of setting that changed. The environment variables are merged
+     * into those of the app and written at once, and the missing services are bound at once.
+     */
+    public void apply(CloudFoundryClient client) {
+        if (isMemoryChanged()) {
+            client.updateApplicationMemory(appName, memory);
+        }
+        if (isEnvChanged()) {
+            Map<String, String> env = new HashMap<String, String>(currentEnv);
+            env.putAll(changedEnv);
+            client.updateApplicationEnv(appName, env);
+        }
+        if (isRoutesChanged()) {
+            List<String> uris = new ArrayList<String>();
+            if (!unmapUris) {
+                uris.addAll(currentUris);
+                uris.addAll(addedUris);
+            }
+            client.updateApplicationUris(appName, uris);
+        }
+        if (isServicesChanged()) {
+            List<String> services = new ArrayList<String>(currentServices);
+            services.addAll(addedServices);
+            client.updateApplicationServices(appName, services);
+        }
+        if (isStagingChanged()) {
+            client.updateApplicationStaging(appName, staging);
+        }
+        if (isInstancesChanged()) {
+            client.updateApplicationInstances(appName, instances);
+        }
+    }
+
+    /**
+     * Describes the changes for the build log, without the values of the environment variables.
+     */
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "none";
+        }
+        List<String> parts = new ArrayList<String>();
+        if (isInstancesChanged()) {
+            parts.add("instances " + currentInstances + " -> " + instances);
+        }
+        if (isMemoryChanged()) {
+            parts.add("memory " + currentMemory + "M -> " + memory + "M");
+        }
+        for (String name : changedEnv.keySet()) {
+            parts.add((currentEnv.containsKey(name) ? "env ~" : "env +") + name);
+        }
+        if (unmapUris) {
+            parts.add("routes -" + currentUris);
+        }
+        for (String uri : addedUris) {
+            parts.add("route +" + uri);
+        }
+        for (String serviceName : addedServices) {
+            parts.add("service +" + serviceName);
+        }
+        if (isStagingChanged()) {
+            parts.add("staging");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String part : parts) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(part);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,621 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ * Copyright (c) ActiveState 2014 - ALL RIGHTS RESERVED.
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.HttpProxyConfiguration;
+import org.cloudfoundry.client.lib.StartingInfo;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.Staging;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes a single application with a logged-in client: creates it if needed, updates its settings, uploads its bits,
+ * starts it, and waits for it to be running.
+ * The deployer only holds the settings of the publisher and is serializable, so that the push can run on the agent
+ * of the workspace, with AgentDeployment, as well as on the master. Everything that needs the build is done by the
+ * publisher before and after the push, and the push only talks to the target, the workspace and the build log.
+ */
+public class AppDeployer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String target;
+    private final String organization;
+    private final String cloudSpace;
+    private final boolean resetIfExists;
+    private final int pluginTimeout;
+    private final int minRunningInstances;
+
+    public AppDeployer(String target, String organization, String cloudSpace, boolean resetIfExists,
+                       int pluginTimeout, int minRunningInstances) {
+        this.target = target;
+        this.organization = organization;
+        this.cloudSpace = cloudSpace;
+        this.resetIfExists = resetIfExists;
+        this.pluginTimeout = pluginTimeout;
+        this.minRunningInstances = minRunningInstances;
+    }
+
+    /**
+     * The outcome of the push of an app, with the durations of its phases.
+     */
+    public static class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String appName;
+        private final List<DeploymentTimingAction.PhaseTiming> timings =
+                new ArrayList<DeploymentTimingAction.PhaseTiming>();
+        private boolean success;
+        private String fingerprint;
+        private String bitsDigest;
+        private long uploadedBytes;
+        private String appGuid;
+        private long updatedAt;
+        // When the app started staging, or 0 if it is not staged
+        private long stagingStart;
+        private int runningInstances;
+        private int totalInstances;
+
+        Result(String appName) {
+            this.appName = appName;
+        }
+
+        void record(DeploymentTimingAction.Phase phase, long startNanos) {
+            record(phase, startNanos, System.nanoTime());
+        }
+
+        void record(DeploymentTimingAction.Phase phase, long startNanos, long endNanos) {
+            timings.add(new DeploymentTimingAction.PhaseTiming(appName, phase,
+                    TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos)));
+        }
+
+        Result succeeded(String fingerprint) {
+            this.success = true;
+            this.fingerprint = fingerprint;
+            return this;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * The fingerprint of the app that was deployed, or null if it was not computed or the push failed.
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * The digest of the bits the app was given, or null if they were not uploaded nor known to be on the target.
+         */
+        public String getBitsDigest() {
+            return bitsDigest;
+        }
+
+        public List<DeploymentTimingAction.PhaseTiming> getTimings() {
+            return timings;
+        }
+
+        public long getUploadedBytes() {
+            return uploadedBytes;
+        }
+
+        /**
+         * The GUID of the app, or null if it was not started nor found unchanged.
+         */
+        public String getAppGuid() {
+            return appGuid;
+        }
+
+        /**
+         * When the app was last updated on the target once it was running, in ms, or 0 if it is not known.
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        public int getRunningInstances() {
+            return runningInstances;
+        }
+
+        public int getTotalInstances() {
+            return totalInstances;
+        }
+    }
+
+    /**
+     * Pushes an app from the given workspace.
+     *
+     * @param fingerprintApp      whether the fingerprint of the app must be computed, to skip unchanged apps
+     * @param previousFingerprint the fingerprint of the last deployment of the app to the same space, or null if there
+     *                            is none or it failed
+     * @param previousBitsDigest  the bits digest of the last deployment of the app to the same space, or null if it is
+     *                            not known, failed or unchanged apps are not skipped, in which case the bits are
+     *                            uploaded
+     */
+    public Result deploy(CloudFoundryClient client, DeploymentInfo deploymentInfo, FilePath workspace,
+                         boolean fingerprintApp, String previousFingerprint, String previousBitsDigest,
+                         BuildListener listener)
+            throws IOException, InterruptedException {
+        String appName = deploymentInfo.getAppName();
+        Result result = new Result(appName);
+        StagingLogStreamer.Stream stagingLogs = null;
+        try {
+            String appURI = "https://" + deploymentInfo.getHostname() + "." + deploymentInfo.getDomain();
+
+            long phaseStart = System.nanoTime();
+            FilePathApplicationArchive archive = createArchive(workspace, deploymentInfo);
+            String bitsDigest = DeploymentFingerprint.computeBits(archive);
+
+            // Skip the whole push if nothing changed since the last deployment, and the app is still running
+            String fingerprint = null;
+            if (fingerprintApp) {
+                fingerprint = DeploymentFingerprint.compute(archive, deploymentInfo, target, organization, cloudSpace);
+                CloudApplication runningApp = fingerprint.equals(previousFingerprint)
+                        ? findRunningApplication(client, appName) : null;
+                if (runningApp != null) {
+                    result.record(DeploymentTimingAction.Phase.FINGERPRINT, phaseStart);
+                    listener.getLogger().println(
+                            "App bits and configuration are unchanged since the last deployment, skipping push.");
+                    result.bitsDigest = bitsDigest;
+                    // The app is reported like a pushed one, so that its droplet can be promoted
+                    result.appGuid = runningApp.getMeta().getGuid().toString();
+                    result.updatedAt = DropletPromoter.getUpdatedAt(runningApp.getMeta());
+                    result.runningInstances = runningApp.getRunningInstances();
+                    result.totalInstances = runningApp.getInstances();
+                    return result.succeeded(fingerprint);
+                }
+            }
+            result.record(DeploymentTimingAction.Phase.FINGERPRINT, phaseStart);
+
+            // Create app if it doesn't already exist, or if resetIfExists parameter is true
+            phaseStart = System.nanoTime();
+            CloudApplication existingApp = createApplicationIfNeeded(client, listener, deploymentInfo, appURI);
+            boolean createdNewApp = existingApp == null;
+            result.record(DeploymentTimingAction.Phase.APP_CREATE, phaseStart);
+
+            // Only write the instances, memory, routes, services, env vars and staging that differ from the app
+            phaseStart = System.nanoTime();
+            AppChanges changes;
+            if (createdNewApp) {
+                changes = AppChanges.computeForNewApp(deploymentInfo);
+            } else {
+                changes = AppChanges.compute(existingApp, getEnvironment(client, deploymentInfo), deploymentInfo);
+                listener.getLogger().println("App settings changes: " + changes);
+            }
+            // An unknown previous deployment, or a reset app, is pushed in full
+            boolean bitsChanged = resetIfExists || !bitsDigest.equals(previousBitsDigest);
+            AppChanges.Action action = changes.getAction(bitsChanged);
+            if (!createdNewApp) {
+                listener.getLogger().println("Deployment action: " + action.getDescription() + ".");
+            }
+            changes.apply(client);
+            result.record(DeploymentTimingAction.Phase.ENV_UPDATE, phaseStart);
+
+            // Push files, also to restage the app
+            if (action == AppChanges.Action.PUSH || action == AppChanges.Action.RESTAGE) {
+                listener.getLogger().println("Pushing app bits.");
+                phaseStart = System.nanoTime();
+                try {
+                    client.uploadApplication(appName, archive, archive.newUploadCallback());
+                } finally {
+                    archive.close();
+                }
+                result.record(DeploymentTimingAction.Phase.UPLOAD, phaseStart);
+                result.uploadedBytes = archive.getBytesRead();
+                // The target has the new bits, even if the app then fails to start
+                result.bitsDigest = bitsDigest;
+                listener.getLogger().println("Uploaded " + archive.getBytesRead() + " bytes.");
+            } else {
+                // The target kept the bits of the last deployment, which are the same
+                result.bitsDigest = bitsDigest;
+            }
+
+            // Start or restart application, scaling and route changes don't need it
+            if (action != AppChanges.Action.NONE && action != AppChanges.Action.SCALE) {
+                phaseStart = System.nanoTime();
+                StartingInfo startingInfo;
+                if (createdNewApp) {
+                    listener.getLogger().println("Starting application.");
+                    startingInfo = client.startApplication(appName);
+                } else {
+                    listener.getLogger().println("Restarting application.");
+                    startingInfo = client.restartApplication(appName);
+                }
+                result.record(DeploymentTimingAction.Phase.START, phaseStart);
+
+                // Start printing the staging logs, when the app is staged, staging is timed by the readiness wait
+                if (action != AppChanges.Action.RESTART) {
+                    result.stagingStart = System.nanoTime();
+                    stagingLogs = StagingLogStreamer.getInstance().open(client, appName, startingInfo, listener);
+                }
+            }
+
+            return waitUntilRunning(client, deploymentInfo, appURI, fingerprint, result, listener);
+        } catch (CloudFoundryException e) {
+            printException(e, listener);
+            return result;
+        } catch (FileNotFoundException e) {
+            listener.getLogger().println("ERROR: Could not find file: " + e.getMessage());
+            return result;
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("ERROR: IllegalArgumentException: " + e.getMessage());
+            return result;
+        } finally {
+            // Staging is over once the app is started or has failed, or the build was aborted
+            if (stagingLogs != null) {
+                stagingLogs.close();
+            }
+        }
+    }
+
+    /**
+     * Deploys an app with the droplet of an app that was already staged, instead of uploading and staging its bits.
+     * The settings of the app are still created or updated like for a push.
+     */
+    public Result promote(CloudFoundryClient client, DeploymentInfo deploymentInfo,
+                          DeploymentResultAction.AppDeployment upstream, DropletPromoter promoter,
+                          BuildListener listener) throws IOException, InterruptedException {
+        String appName = deploymentInfo.getAppName();
+        Result result = new Result(appName);
+        try {
+            String appURI = "https://" + deploymentInfo.getHostname() + "." + deploymentInfo.getDomain();
+
+            long phaseStart = System.nanoTime();
+            CloudApplication existingApp = createApplicationIfNeeded(client, listener, deploymentInfo, appURI);
+            result.record(DeploymentTimingAction.Phase.APP_CREATE, phaseStart);
+
+            // The staging settings are updated too, but they are not used by a promoted droplet
+            phaseStart = System.nanoTime();
+            AppChanges changes;
+            if (existingApp == null) {
+                changes = AppChanges.computeForNewApp(deploymentInfo);
+            } else {
+                changes = AppChanges.compute(existingApp, getEnvironment(client, deploymentInfo), deploymentInfo);
+                listener.getLogger().println("App settings changes: " + changes);
+            }
+            changes.apply(client);
+            result.record(DeploymentTimingAction.Phase.ENV_UPDATE, phaseStart);
+
+            phaseStart = System.nanoTime();
+            CloudApplication app = client.getApplication(appName);
+            listener.getLogger().println("Promoting the droplet of app " + upstream.getGuid() + ".");
+            long dropletSize;
+            try {
+                dropletSize = promoter.promote(upstream.getGuid(), upstream.getUpdatedAt(),
+                        app.getMeta().getGuid().toString(), TimeUnit.SECONDS.toMillis(pluginTimeout));
+            } catch (IOException e) {
+                listener.getLogger().println("ERROR: " + e.getMessage());
+                listener.getLogger().println("Cloud Foundry promotion failed.");
+                return result;
+            }
+            result.record(DeploymentTimingAction.Phase.DROPLET_COPY, phaseStart);
+            result.uploadedBytes = dropletSize;
+            listener.getLogger().println("Copied a droplet of " + dropletSize + " bytes.");
+
+            // The app starts from its new droplet, without staging
+            phaseStart = System.nanoTime();
+            if (existingApp == null) {
+                listener.getLogger().println("Starting application.");
+                client.startApplication(appName);
+            } else {
+                listener.getLogger().println("Restarting application.");
+                client.restartApplication(appName);
+            }
+            result.record(DeploymentTimingAction.Phase.START, phaseStart);
+
+            return waitUntilRunning(client, deploymentInfo, appURI, null, result, listener);
+        } catch (CloudFoundryException e) {
+            printException(e, listener);
+            return result;
+        } catch (IllegalArgumentException e) {
+            listener.getLogger().println("ERROR: IllegalArgumentException: " + e.getMessage());
+            return result;
+        }
+    }
+
+    /**
+     * Waits until the started app is running, until the plugin timeout, and reports how it went.
+     */
+    private Result waitUntilRunning(CloudFoundryClient client, DeploymentInfo deploymentInfo, String appURI,
+                                    String fingerprint, Result result, BuildListener listener)
+            throws IOException, InterruptedException {
+        String appName = deploymentInfo.getAppName();
+        // Keep checking to see if the app is running, until the plugin timeout
+        long phaseStart = System.nanoTime();
+        CloudApplication app = client.getApplication(appName);
+        ReadinessCheck readinessCheck = waitUntilReady(client, app, new ReadinessCheck(appName,
+                minRunningInstances, TimeUnit.SECONDS.toMillis(pluginTimeout)));
+        result.record(DeploymentTimingAction.Phase.READINESS, phaseStart);
+        if (result.stagingStart != 0) {
+            // Staging ended when the instances of the app were first known, or was cut short by the wait
+            long stagingEnd = readinessCheck.getStagedNanos() != 0 ? readinessCheck.getStagedNanos()
+                    : System.nanoTime();
+            result.record(DeploymentTimingAction.Phase.STAGING_LOGS, result.stagingStart, stagingEnd);
+        }
+        int running = readinessCheck.getRunning();
+        int totalInstances = readinessCheck.getTotal();
+        result.runningInstances = running;
+        result.totalInstances = totalInstances;
+        if (app.getMeta() != null && app.getMeta().getGuid() != null) {
+            result.appGuid = app.getMeta().getGuid().toString();
+        }
+
+        String instanceGrammar = "instances";
+        if (running == 1)
+            instanceGrammar = "instance";
+        listener.getLogger().println(running + " " + instanceGrammar + " running out of " + totalInstances);
+
+        if (readinessCheck.getStatus() == ReadinessCheck.Status.FAILED) {
+            listener.getLogger().println("ERROR: An instance of the application is "
+                    + readinessCheck.getFailedState() + ".");
+            listener.getLogger().println("Cloud Foundry push failed.");
+            return result;
+        } else if (running > 0) {
+            if (running != totalInstances) {
+                listener.getLogger().println("WARNING: Some instances of the application are not running.");
+            }
+            if (deploymentInfo.isNoRoute()) {
+                listener.getLogger().println("Application is now running. (No route)");
+            } else {
+                listener.getLogger().println("Application is now running at " + appURI);
+            }
+            listener.getLogger().println("Cloud Foundry push successful.");
+            // Staging updated the app after it was started, so it is looked up again for the next promotions
+            result.updatedAt = DropletPromoter.getUpdatedAt(client.getApplication(appName).getMeta());
+            return result.succeeded(fingerprint);
+        } else {
+            listener.getLogger().println(
+                    "ERROR: The application failed to start after " + pluginTimeout + " seconds.");
+            listener.getLogger().println("Cloud Foundry push failed.");
+            return result;
+        }
+    }
+
+    private static void printException(CloudFoundryException e, BuildListener listener) {
+        listener.getLogger().println("ERROR: Unknown CloudFoundryException: " + e.getMessage());
+        listener.getLogger().println("ERROR: Cloud Foundry error code: " + e.getCloudFoundryErrorCode());
+        if (e.getDescription() != null) {
+            listener.getLogger().println("ERROR: " + e.getDescription());
+        }
+        e.printStackTrace(listener.getLogger());
+    }
+
+    /**
+     * The app is polled by the shared scheduler, with the polls of the apps of all the other builds.
+     */
+    private ReadinessCheck waitUntilReady(CloudFoundryClient client, CloudApplication app,
+                                          ReadinessCheck readinessCheck) throws IOException, InterruptedException {
+        Future<ReadinessCheck> future = ReadinessScheduler.getInstance().register(client, app, readinessCheck);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                // Lets the usual CloudFoundryException handling report it
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Could not get the instances of " + app.getName(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns the app if it already exists and was kept, or null if it was just created.
+     */
+    private CloudApplication createApplicationIfNeeded(CloudFoundryClient client, BuildListener listener,
+                                                       DeploymentInfo deploymentInfo, String appURI)
+            throws InterruptedException {
+        // Check if app already exists
+        // This is a single lookup by name, instead of listing all the apps of the space
+        boolean createNewApp = true;
+        CloudApplication existingApp = findApplication(client, deploymentInfo.getAppName());
+        if (existingApp != null) {
+            if (resetIfExists) {
+                listener.getLogger().println("App already exists, resetting.");
+                client.deleteApplication(deploymentInfo.getAppName());
+                listener.getLogger().println("App deleted.");
+            } else {
+                createNewApp = false;
+                listener.getLogger().println("App already exists, skipping creation.");
+            }
+        }
+
+        // Create app if it doesn't exist
+        if (createNewApp) {
+            listener.getLogger().println("Creating new app.");
+            String stack = deploymentInfo.getStack();
+            String spaceKey = SpaceMetadataCache.spaceKey(client, target, organization, cloudSpace);
+            if (stack != null && SpaceMetadataCache.getInstance().getStack(client, spaceKey, stack) == null) {
+                throw new IllegalArgumentException("Stack " + stack + " does not exist on the target.");
+            }
+            Staging staging = new Staging(deploymentInfo.getCommand(), deploymentInfo.getBuildpack(),
+                    deploymentInfo.getStack(), deploymentInfo.getTimeout());
+            List<String> uris = new ArrayList<String>();
+            // Pass an empty List as the uri list if no-route is set
+            if (!deploymentInfo.isNoRoute()) {
+                uris.add(appURI);
+            }
+            List<String> services = deploymentInfo.getServicesNames();
+            client.createApplication(deploymentInfo.getAppName(), staging, deploymentInfo.getMemory(), uris, services);
+            return null;
+        }
+
+        return existingApp;
+    }
+
+    /**
+     * Returns the environment variables of an existing app, or null if the deployment has none to compare them to.
+     */
+    private static Map<String, String> getEnvironment(CloudFoundryClient client, DeploymentInfo deploymentInfo) {
+        if (deploymentInfo.getEnvVars().isEmpty()) {
+            return null;
+        }
+        Map<String, Object> appEnvs = client.getApplicationEnvironment(deploymentInfo.getAppName());
+        // Unavoidable cast warning
+        @SuppressWarnings("unchecked")
+        Map<String, String> env = (Map<String, String>) appEnvs.get("environment_json");
+        return env;
+    }
+
+    /**
+     * Fingerprints the files of the app where they are, which may be on an agent.
+     * Only the files that the target does not already know will then be read and uploaded.
+     */
+    private static FilePathApplicationArchive createArchive(FilePath workspace, DeploymentInfo deploymentInfo)
+            throws IOException, InterruptedException {
+        FilePath appPath = new FilePath(workspace, deploymentInfo.getAppPath());
+        if (appPath.isDirectory()) {
+            return FilePathApplicationArchive.fromDirectory(appPath, getHashIndexFile(workspace, appPath));
+        } else {
+            // A single archive file (war, jar...), its entries are streamed with no temp file on the master
+            return FilePathApplicationArchive.fromZipFile(appPath);
+        }
+    }
+
+    /**
+     * The file hash index of an app directory is kept next to the workspace, so that it is never part of the app.
+     */
+    private static FilePath getHashIndexFile(FilePath workspace, FilePath appPath) {
+        FilePath parent = workspace.getParent();
+        if (parent == null) {
+            return null;
+        }
+        return parent.child(workspace.getName() + "@tmp")
+                .child("cloudfoundry-" + Util.getDigestOf(appPath.getRemote()) + ".index");
+    }
+
+    /**
+     * Returns the app with the given name if all its instances are running, or null.
+     */
+    private static CloudApplication findRunningApplication(CloudFoundryClient client, String appName) {
+        CloudApplication app = findApplication(client, appName);
+        if (app != null && app.getState() == CloudApplication.AppState.STARTED
+                && app.getRunningInstances() >= app.getInstances()) {
+            return app;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the app with the given name in the target space, or null if there is none.
+     */
+    static CloudApplication findApplication(CloudFoundryClient client, String appName) {
+        try {
+            return client.getApplication(appName);
+        } catch (CloudFoundryException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * What an agent needs to log in to the target by itself. The password is sent in clear over the remoting
+     * channel, since the agent cannot decrypt the credentials of the master.
+     */
+    public static class AgentConnection implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String targetUrl;
+        private final String organization;
+        private final String cloudSpace;
+        private final String credentialsId;
+        private final String username;
+        private final String password;
+        private final boolean selfSigned;
+        private final String proxyHost;
+        private final int proxyPort;
+
+        public AgentConnection(URL targetUrl, String organization, String cloudSpace, String credentialsId,
+                               String username, String password, boolean selfSigned,
+                               HttpProxyConfiguration proxyConfig) {
+            this.targetUrl = targetUrl.toExternalForm();
+            this.organization = organization;
+            this.cloudSpace = cloudSpace;
+            this.credentialsId = credentialsId;
+            this.username = username;
+            this.password = password;
+            this.selfSigned = selfSigned;
+            this.proxyHost = proxyConfig == null ? null : proxyConfig.getProxyHost();
+            this.proxyPort = proxyConfig == null ? 0 : proxyConfig.getProxyPort();
+        }
+
+        /**
+         * Returns a logged-in client from the session pool of the JVM this is called in.
+         */
+        CloudFoundryClient getClient() throws IOException {
+            HttpProxyConfiguration proxyConfig = proxyHost == null ? null
+                    : new HttpProxyConfiguration(proxyHost, proxyPort);
+            return ClientSessionPool.getInstance().getClient(new URL(targetUrl), organization, cloudSpace,
+                    credentialsId, username, password, selfSigned, proxyConfig);
+        }
+    }
+
+    /**
+     * Pushes an app on the machine of the workspace, so that its bits go from the agent straight to the target.
+     * Only the log lines, through the remote build listener, and the result come back to the master.
+     */
+    public static class AgentDeployment implements FilePath.FileCallable<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final AppDeployer deployer;
+        private final AgentConnection connection;
+        private final DeploymentInfo deploymentInfo;
+        private final boolean fingerprintApp;
+        private final String previousFingerprint;
+        private final String previousBitsDigest;
+        private final BuildListener listener;
+
+        public AgentDeployment(AppDeployer deployer, AgentConnection connection, DeploymentInfo deploymentInfo,
+                               boolean fingerprintApp, String previousFingerprint, String previousBitsDigest,
+                               BuildListener listener) {
+            this.deployer = deployer;
+            this.connection = connection;
+            this.deploymentInfo = deploymentInfo;
+            this.fingerprintApp = fingerprintApp;
+            this.previousFingerprint = previousFingerprint;
+            this.previousBitsDigest = previousBitsDigest;
+            this.listener = listener;
+        }
+
+        public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            CloudFoundryClient client = connection.getClient();
+            try {
+                return deployer.deploy(client, deploymentInfo, new FilePath(workspace), fingerprintApp,
+                        previousFingerprint, previousBitsDigest, listener);
+            } catch (ResourceAccessException e) {
+                ClientSessionPool.getInstance().invalidate(client);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.Util;
+import hudson.util.Secret;
+import org.cloudfoundry.client.lib.CloudCredentials;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.HttpProxyConfiguration;
+import org.cloudfoundry.client.lib.org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.cloudfoundry.client.lib.rest.CloudControllerClient;
+import org.cloudfoundry.client.lib.rest.CloudControllerClientFactory;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps logged-in clients on the master, so that builds and connection tests that use the same target, organization,
+ * space and credentials don't need to log in again. Reusing a client also reuses its HTTP connections.
+ * Sessions are evicted when they have been idle for too long, when there are too many of them (least recently used
+ * first), or when their credentials were changed. Tokens are renewed shortly before they expire.
+ * An evicted client is only dropped from the pool, so that builds that are still using it are not affected.
+ * The calls of the clients go through the {@link CloudControllerThrottle} of their target.
+ */
+public final class ClientSessionPool {
+
+    private static final long IDLE_TIMEOUT = Long.getLong(ClientSessionPool.class.getName() + ".idleTimeout",
+            TimeUnit.MINUTES.toMillis(30));
+    private static final int MAX_SESSIONS = Integer.getInteger(ClientSessionPool.class.getName() + ".maxSessions", 32);
+    private static final long TOKEN_RENEWAL_MARGIN = TimeUnit.MINUTES.toMillis(2);
+
+    private static final ClientSessionPool INSTANCE = new ClientSessionPool();
+
+    /**
+     * Creates the Cloud Controller clients of the sessions. Tests replace it to run against a fake Cloud Controller.
+     */
+    interface CloudControllerFactory {
+        CloudControllerClient newCloudController(URL targetUrl, CloudCredentials credentials, String organization,
+                                                 String cloudSpace, HttpProxyConfiguration proxyConfig,
+                                                 boolean selfSigned);
+    }
+
+    static final CloudControllerFactory DEFAULT_FACTORY = new CloudControllerFactory() {
+        public CloudControllerClient newCloudController(URL targetUrl, CloudCredentials credentials,
+                                                        String organization, String cloudSpace,
+                                                        HttpProxyConfiguration proxyConfig, boolean selfSigned) {
+            // Same as the CloudFoundryClient constructor that takes the credentials
+            return new CloudControllerClientFactory(proxyConfig, selfSigned)
+                    .newCloudController(targetUrl, credentials, organization, cloudSpace);
+        }
+    };
+
+    private volatile CloudControllerFactory factory = DEFAULT_FACTORY;
+
+    // Access-ordered, so that the first entry is always the least recently used session
+    private final LinkedHashMap<SessionKey, Session> sessions =
+            new LinkedHashMap<SessionKey, Session>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<SessionKey, Session> eldest) {
+                    return size() > MAX_SESSIONS;
+                }
+            };
+
+    // The credentials digests of the clients of the pool, also once their session is dropped, while they are in use
+    private final Map<CloudFoundryClient, String> clientCredentials = new WeakHashMap<CloudFoundryClient, String>();
+
+    private ClientSessionPool() {
+    }
+
+    public static ClientSessionPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces the factory of the Cloud Controller clients, and drops all the sessions. Null restores the default.
+     */
+    synchronized void setCloudControllerFactory(CloudControllerFactory factory) {
+        this.factory = factory == null ? DEFAULT_FACTORY : factory;
+        sessions.clear();
+    }
+
+    /**
+     * Returns a logged-in client for the given target and space, creating a new session if needed.
+     */
+    public CloudFoundryClient getClient(URL targetUrl, String organization, String cloudSpace,
+                                        StandardUsernamePasswordCredentials credentials, boolean selfSigned,
+                                        HttpProxyConfiguration proxyConfig) {
+        return getClient(targetUrl, organization, cloudSpace, credentials.getId(), credentials.getUsername(),
+                Secret.toString(credentials.getPassword()), selfSigned, proxyConfig);
+    }
+
+    /**
+     * Same as above, for agents which are only given the username and password of the credentials.
+     */
+    public CloudFoundryClient getClient(URL targetUrl, String organization, String cloudSpace, String credentialsId,
+                                        String username, String password, boolean selfSigned,
+                                        HttpProxyConfiguration proxyConfig) {
+        SessionKey key = new SessionKey(targetUrl, organization, cloudSpace, credentialsId, selfSigned, proxyConfig);
+        String credentialsDigest = Util.getDigestOf(username + ":" + password);
+
+        Session session;
+        synchronized (this) {
+            evictIdleSessions();
+            session = sessions.get(key);
+            if (session != null && !session.credentialsDigest.equals(credentialsDigest)) {
+                // The credentials were changed since this session was opened
+                sessions.remove(key);
+                session = null;
+            }
+        }
+
+        if (session == null) {
+            // Logging in is done outside of the lock, so that a slow target doesn't block the other builds
+            CloudCredentials cloudCredentials = new CloudCredentials(username, password);
+            CloudFoundryClient client = new CloudFoundryClient(CloudControllerThrottle.forTarget(targetUrl).wrap(
+                    factory.newCloudController(targetUrl, cloudCredentials, organization, cloudSpace, proxyConfig,
+                            selfSigned)));
+            Session newSession = new Session(client, credentialsDigest);
+            newSession.login();
+            synchronized (this) {
+                clientCredentials.put(client, credentialsDigest);
+                session = sessions.get(key);
+                if (session == null || !session.credentialsDigest.equals(credentialsDigest)) {
+                    sessions.put(key, newSession);
+                    session = newSession;
+                }
+                // Otherwise another build logged in at the same time, and its session is kept
+            }
+        } else {
+            session.renewTokenIfNeeded();
+        }
+        return session.client;
+    }
+
+    /**
+     * Returns the digest of the username and password that a client of the pool logged in with, to tell apart what
+     * different users are allowed to see of the same space.
+     */
+    public synchronized String getCredentialsDigest(CloudFoundryClient client) {
+        String credentialsDigest = clientCredentials.get(client);
+        if (credentialsDigest == null) {
+            throw new IllegalArgumentException("The client of " + client.getCloudControllerUrl()
+                    + " is not part of the pool");
+        }
+        return credentialsDigest;
+    }
+
+    /**
+     * Removes the session of a client, for instance after its token was rejected by the target.
+     * Does nothing if the client is null or is not part of the pool.
+     */
+    public synchronized void invalidate(CloudFoundryClient client) {
+        if (client == null) {
+            return;
+        }
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session.client == client) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a valid access token of a client, for the calls to the target that the client cannot make.
+     * A client that is not part of the pool anymore logs in again.
+     */
+    public String getAccessToken(CloudFoundryClient client) {
+        Session session = null;
+        synchronized (this) {
+            for (Session candidate : sessions.values()) {
+                if (candidate.client == client) {
+                    session = candidate;
+                }
+            }
+        }
+        OAuth2AccessToken token = session == null ? client.login() : session.getToken();
+        if (token == null) {
+            throw new IllegalStateException("Could not get an access token for " + client.getCloudControllerUrl());
+        }
+        return token.getValue();
+    }
+
+    private void evictIdleSessions() {
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (now - session.lastUsed > IDLE_TIMEOUT) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Session {
+
+        private final CloudFoundryClient client;
+        private final String credentialsDigest;
+        private OAuth2AccessToken token;
+        private volatile long lastUsed;
+
+        Session(CloudFoundryClient client, String credentialsDigest) {
+            this.client = client;
+            this.credentialsDigest = credentialsDigest;
+        }
+
+        synchronized void login() {
+            token = client.login();
+            lastUsed = System.currentTimeMillis();
+        }
+
+        synchronized void renewTokenIfNeeded() {
+            lastUsed = System.currentTimeMillis();
+            Date tokenExpiration = token == null ? null : token.getExpiration();
+            if (tokenExpiration != null && tokenExpiration.getTime() - lastUsed < TOKEN_RENEWAL_MARGIN) {
+                login();
+            }
+        }
+
+        synchronized OAuth2AccessToken getToken() {
+            renewTokenIfNeeded();
+            return token;
+        }
+    }
+
+    private static class SessionKey {
+
+        private final String target;
+        private final String organization;
+        private final String cloudSpace;
+        private final String credentialsId;
+        private final boolean selfSigned;
+        private final String proxy;
+
+        SessionKey(URL targetUrl, String organization, String cloudSpace, String credentialsId, boolean selfSigned,
+                   HttpProxyConfiguration proxyConfig) {
+            this.target = targetUrl.toExternalForm();
+            this.organization = organization;
+            this.cloudSpace = cloudSpace;
+            this.credentialsId = credentialsId;
+            this.selfSigned = selfSigned;
+            if (proxyConfig == null) {
+                this.proxy = null;
+            } else {
+                this.proxy = proxyConfig.getProxyHost() + ":" + proxyConfig.getProxyPort();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return selfSigned == other.selfSigned
+                    && target.equals(other.target)
+                    && Util.fixNull(organization).equals(Util.fixNull(other.organization))
+                    && Util.fixNull(cloudSpace).equals(Util.fixNull(other.cloudSpace))
+                    && Util.fixNull(credentialsId).equals(Util.fixNull(other.credentialsId))
+                    && Util.fixNull(proxy).equals(Util.fixNull(other.proxy));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = target.hashCode();
+            result = 31 * result + Util.fixNull(organization).hashCode();
+            result = 31 * result + Util.fixNull(cloudSpace).hashCode();
+            result = 31 * result + Util.fixNull(credentialsId).hashCode();
+            result = 31 * result + (selfSigned ? 1 : 0);
+            result = 31 * result + Util.fixNull(proxy).hashCode();
+            return result;
+        }
+    }
+}
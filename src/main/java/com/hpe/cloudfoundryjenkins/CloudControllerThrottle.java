@@ -0,0 +1,348 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.web.client.HttpStatusCodeException;
+import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
+import org.cloudfoundry.client.lib.rest.CloudControllerClient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Guards the calls of all the builds to a Cloud Controller, so that a deploy storm doesn't exceed the rate limits of
+ * the target, and a target that is down fails the builds at once instead of each of them waiting for its timeouts.
+ * <ul>
+ * <li>The calls to a target share a token bucket, which lets bursts through and then spaces the calls out.</li>
+ * <li>The calls that the target rejected with 429 Too Many Requests are retried, since it didn't act on them. The
+ * short read-only calls, like the instance polls, are also retried when the target is unavailable, but not the long
+ * reads like the staging logs. Retries back off exponentially, or wait as long as the Retry-After header of the
+ * response says, when the exception carries the headers. Only the REST calls made with {@link #call}, like the ones of
+ * the {@link DropletPromoter}, have them: the {@link CloudFoundryException} of the client has no headers, so the calls
+ * of the client always use the computed backoff.</li>
+ * <li>After several server errors in a row, the circuit of the target is opened: its calls fail at once for a while,
+ * then a single trial call is let through, and the other calls keep failing at once until it succeeds.</li>
+ * </ul>
+ * This is done by every JVM that makes the calls, so the agents that push apps have their own throttles. The threads
+ * that poll for many builds at once, like the ones of the {@link ReadinessScheduler}, don't wait for the retries: they
+ * get the failure at once and try again on their next poll.
+ */
+public final class CloudControllerThrottle {
+
+    private static final Logger LOGGER = Logger.getLogger(CloudControllerThrottle.class.getName());
+
+    private static final String PREFIX = CloudControllerThrottle.class.getName();
+    private static final double RATE = Double.parseDouble(System.getProperty(PREFIX + ".rate", "20"));
+    private static final int BURST = Integer.getInteger(PREFIX + ".burst", 40);
+    private static final int MAX_RETRIES = Integer.getInteger(PREFIX + ".maxRetries", 4);
+    private static final long INITIAL_BACKOFF = Long.getLong(PREFIX + ".initialBackoff", 500);
+    private static final long MAX_BACKOFF = Long.getLong(PREFIX + ".maxBackoff", TimeUnit.SECONDS.toMillis(30));
+    private static final int FAILURE_THRESHOLD = Integer.getInteger(PREFIX + ".failureThreshold", 5);
+    private static final long OPEN_TIME = Long.getLong(PREFIX + ".openTime", TimeUnit.SECONDS.toMillis(30));
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private static final ConcurrentMap<String, CloudControllerThrottle> THROTTLES =
+            new ConcurrentHashMap<String, CloudControllerThrottle>();
+
+    // The calls that don't reach the target
+    private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList(
+            "getCloudControllerUrl", "setResponseErrorHandler"));
+
+    // The short read-only calls, which can be retried when the target is unavailable
+    private static final Set<String> RETRYABLE_METHODS = new HashSet<String>(Arrays.asList(
+            "getApplication", "getApplications", "getApplicationEnvironment", "getApplicationInstances",
+            "getApplicationStats", "getCloudInfo", "getDefaultDomain", "getDomains", "getOrganizations",
+            "getRoutes", "getService", "getServices", "getSpaces", "getStack", "getStacks"));
+
+    // Set on the threads that must not wait for the retries
+    private static final ThreadLocal<Boolean> NO_RETRIES = new ThreadLocal<Boolean>();
+
+    private final String target;
+    private final double ratePerMilli;
+    private final int burst;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final int failureThreshold;
+    private final long openTime;
+
+    // Token bucket, guarded by this
+    private double tokens;
+    private long lastRefill;
+    // Circuit breaker, guarded by this
+    private int consecutiveFailures;
+    // 0 while the circuit is closed
+    private long openUntil;
+    // Whether a trial call is being made, once the circuit was open long enough
+    private boolean probing;
+
+    CloudControllerThrottle(String target, double ratePerSecond, int burst, int maxRetries, long initialBackoff,
+                            long maxBackoff, int failureThreshold, long openTime) {
+        this.target = target;
+        this.ratePerMilli = ratePerSecond / 1000;
+        this.burst = burst;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.tokens = burst;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the throttle shared by all the clients of a target.
+     */
+    public static CloudControllerThrottle forTarget(URL targetUrl) {
+        String target = targetUrl.toExternalForm();
+        CloudControllerThrottle throttle = THROTTLES.get(target);
+        if (throttle == null) {
+            throttle = new CloudControllerThrottle(target, RATE, BURST, MAX_RETRIES, INITIAL_BACKOFF, MAX_BACKOFF,
+                    FAILURE_THRESHOLD, OPEN_TIME);
+            CloudControllerThrottle existing = THROTTLES.putIfAbsent(target, throttle);
+            if (existing != null) {
+                throttle = existing;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Forgets the state of all the targets, for the tests.
+     */
+    static void reset() {
+        THROTTLES.clear();
+    }
+
+    /**
+     * Makes the calls of the current thread fail at once instead of being retried, for the threads that poll for
+     * many builds and would hold them all up while they wait.
+     */
+    public static void disableRetries() {
+        NO_RETRIES.set(Boolean.TRUE);
+    }
+
+    /**
+     * Whether a call that failed with this exception can be made again, because the target was rate limiting or
+     * unavailable.
+     */
+    public static boolean isRetryable(RuntimeException e) {
+        if (e instanceof ResourceAccessException) {
+            return true;
+        }
+        if (e instanceof HttpStatusCodeException) {
+            HttpStatus status = ((HttpStatusCodeException) e).getStatusCode();
+            return status.value() == TOO_MANY_REQUESTS || status.series() == HttpStatus.Series.SERVER_ERROR;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a client that makes its calls through this throttle.
+     */
+    public CloudControllerClient wrap(final CloudControllerClient client) {
+        return (CloudControllerClient) Proxy.newProxyInstance(CloudControllerClient.class.getClassLoader(),
+                new Class<?>[]{CloudControllerClient.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class
+                                || LOCAL_METHODS.contains(method.getName())) {
+                            return invokeClient(client, method, args);
+                        }
+                        return call(method.getName(), RETRYABLE_METHODS.contains(method.getName()),
+                                new Callable<Object>() {
+                                    public Object call() throws Exception {
+                                        return invokeClient(client, method, args);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * Makes a call to the target through this throttle, for the calls that the client doesn't have. The call must
+     * throw the exceptions of the client: a {@link HttpStatusCodeException} for the error responses, and a
+     * {@link ResourceAccessException} when the target could not be reached.
+     *
+     * @param name      the name of the call, for the logs
+     * @param retryable whether the call can be made again when the target is unavailable; the calls that were
+     *                  rate limited are always made again
+     */
+    public <T> T call(String name, boolean retryable, Callable<T> call) throws Exception {
+        long backoff = initialBackoff;
+        for (int attempt = 0; ; attempt++) {
+            boolean probe = checkCircuit();
+            RuntimeException failure;
+            long retryAfter;
+            try {
+                if (!acquire()) {
+                    return call.call();
+                }
+                T result = call.call();
+                onSuccess();
+                return result;
+            } catch (HttpStatusCodeException e) {
+                HttpStatus status = e.getStatusCode();
+                if (status.value() == TOO_MANY_REQUESTS) {
+                    // Rate limited, the target is up and did nothing
+                    onSuccess();
+                } else if (status.series() == HttpStatus.Series.SERVER_ERROR) {
+                    onFailure();
+                    if (!retryable) {
+                        throw e;
+                    }
+                } else {
+                    onSuccess();
+                    throw e;
+                }
+                failure = e;
+                retryAfter = getRetryAfter(e);
+            } catch (ResourceAccessException e) {
+                onFailure();
+                if (!retryable) {
+                    throw e;
+                }
+                failure = e;
+                retryAfter = -1;
+            } finally {
+                if (probe) {
+                    endProbe();
+                }
+            }
+
+            if (attempt >= maxRetries || NO_RETRIES.get() != null) {
+                throw failure;
+            }
+            long delay = retryAfter >= 0 ? retryAfter : backoff;
+            LOGGER.log(Level.FINE, "Retrying " + name + " on " + target + " in " + delay + " ms: "
+                    + failure.getMessage());
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+            backoff = Math.min(maxBackoff, backoff * 2);
+        }
+    }
+
+    private static Object invokeClient(CloudControllerClient client, Method method, Object[] args)
+            throws Exception {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * Waits for a token of the bucket. Returns false if the thread was interrupted, in which case the call is made
+     * anyway and fails or not on its own.
+     */
+    private boolean acquire() {
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerMilli);
+            lastRefill = now;
+            // The token is taken now, and the calls after this one wait for the next ones
+            tokens--;
+            wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerMilli);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails if the circuit is open. Returns true if the call is the trial call of a circuit that was open long
+     * enough, in which case {@link #endProbe} must be called once it is made.
+     */
+    private synchronized boolean checkCircuit() {
+        if (openUntil == 0) {
+            return false;
+        }
+        long remaining = openUntil - System.currentTimeMillis();
+        if (remaining > 0) {
+            throw new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE, "Service Unavailable",
+                    "The calls to " + target + " are suspended for " + TimeUnit.MILLISECONDS.toSeconds(remaining + 999)
+                            + " s after " + consecutiveFailures + " server errors in a row.");
+        }
+        if (probing) {
+            throw new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE, "Service Unavailable",
+                    "The calls to " + target + " are suspended until a trial call succeeds, after "
+                            + consecutiveFailures + " server errors in a row.");
+        }
+        probing = true;
+        return true;
+    }
+
+    /**
+     * Lets another trial call through if the last one neither succeeded nor failed, like when it threw an unexpected
+     * exception.
+     */
+    private synchronized void endProbe() {
+        probing = false;
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        openUntil = 0;
+    }
+
+    private synchronized void onFailure() {
+        consecutiveFailures++;
+        // Once the circuit is open, a single failed trial call opens it again
+        if (consecutiveFailures >= failureThreshold) {
+            if (consecutiveFailures == failureThreshold) {
+                LOGGER.log(Level.WARNING, "Suspending the calls to " + target + " for " + openTime + " ms after "
+                        + consecutiveFailures + " server errors in a row");
+            }
+            openUntil = System.currentTimeMillis() + openTime;
+        }
+    }
+
+    /**
+     * Returns the delay of the Retry-After header of a response, in ms, or -1 if there is none or it is a date.
+     */
+    private long getRetryAfter(HttpStatusCodeException e) {
+        if (e.getResponseHeaders() == null) {
+            return -1;
+        }
+        String retryAfter = e.getResponseHeaders().getFirst("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.min(maxBackoff, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException ignored) {
+            return -1;
+        }
+    }
+}
@@ -24,10 +24,6 @@ import hudson.tasks.Recorder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
-import jenkins.model.Jenkins;
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.cloudfoundry.client.lib.*;
 import org.cloudfoundry.client.lib.domain.*;
 import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
@@ -42,15 +38,18 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class CloudFoundryPushPublisher extends Recorder {
 
     private static final String DEFAULT_MANIFEST_PATH = "manifest.yml";
     private static final int DEFAULT_PLUGIN_TIMEOUT = 120;
+    private static final int DEFAULT_PARALLEL_PUSHES = 1;
 
     public String target;
     public String organization;
@@ -61,8 +60,17 @@ public class CloudFoundryPushPublisher extends Recorder {
     public int pluginTimeout;
     public List<Service> servicesToCreate;
     public ManifestChoice manifestChoice;
-
-    private List<String> appURIs = new ArrayList<String>();
+    public int parallelPushes;
+    public boolean skipUnchanged;
+    public int minRunningInstances;
+    public boolean runOnAgent;
+    public boolean coalesceDeploys;
+    public boolean promoteDroplets;
+
+    // The URIs of the deployed apps are now kept by each build, in its DeploymentResultAction. The field is still
+    // read from the old configurations, so that it is dropped from them the next time the job is saved.
+    @Deprecated
+    private List<String> appURIs;
 
     /**
      * The constructor is databound from the Jenkins config page, which is defined in config.jelly.
@@ -71,7 +79,9 @@ public class CloudFoundryPushPublisher extends Recorder {
     public CloudFoundryPushPublisher(String target, String organization, String cloudSpace,
                                      String credentialsId, boolean selfSigned,
                                      boolean resetIfExists, int pluginTimeout, List<Service> servicesToCreate,
-                                     ManifestChoice manifestChoice) {
+                                     ManifestChoice manifestChoice, int parallelPushes, boolean skipUnchanged,
+                                     int minRunningInstances, boolean runOnAgent, boolean coalesceDeploys,
+                                     boolean promoteDroplets) {
         this.target = target;
         this.organization = organization;
         this.cloudSpace = cloudSpace;
@@ -93,23 +103,42 @@ public class CloudFoundryPushPublisher extends Recorder {
         } else {
             this.manifestChoice = manifestChoice;
         }
+        if (parallelPushes == 0) {
+            this.parallelPushes = DEFAULT_PARALLEL_PUSHES;
+        } else {
+            this.parallelPushes = parallelPushes;
+        }
+        this.skipUnchanged = skipUnchanged;
+        this.minRunningInstances = minRunningInstances;
+        this.runOnAgent = runOnAgent;
+        this.coalesceDeploys = coalesceDeploys;
+        this.promoteDroplets = promoteDroplets;
     }
 
     /**
      * This is the main method, which gets called when the plugin must run as part of a build.
      */
     @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
+    public boolean perform(final AbstractBuild build, Launcher launcher, BuildListener listener) {
         // We don't want to push if the build failed
         if (build.getResult().isWorseThan(Result.SUCCESS))
             return true;
 
         listener.getLogger().println("Cloud Foundry Plugin:");
 
+        // Every phase of the deployment is timed, for the build page and the trend graph of the project
+        DeploymentTimingAction timings = new DeploymentTimingAction();
+        build.addAction(timings);
+        DeploymentResultAction results = new DeploymentResultAction();
+        build.addAction(results);
+
+        CloudFoundryClient pooledClient = null;
+        ServiceProvisioner serviceProvisioner = null;
         try {
             String jenkinsBuildName = build.getProject().getDisplayName();
             URL targetUrl = new URL(target);
 
+            long phaseStart = System.nanoTime();
             List<StandardUsernamePasswordCredentials> standardCredentials = CredentialsProvider.lookupCredentials(
                     StandardUsernamePasswordCredentials.class,
                     build.getProject(),
@@ -118,53 +147,37 @@ public class CloudFoundryPushPublisher extends Recorder {
 
             StandardUsernamePasswordCredentials credentials =
                     CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(credentialsId));
+            timings.record(null, DeploymentTimingAction.Phase.CREDENTIALS, phaseStart);
 
             if (credentials == null) {
                 listener.getLogger().println("ERROR: No credentials have been given.");
                 return false;
             }
 
-            CloudCredentials cloudCredentials =
-                    new CloudCredentials(credentials.getUsername(), Secret.toString(credentials.getPassword()));
             HttpProxyConfiguration proxyConfig = buildProxyConfiguration(targetUrl);
 
-            CloudFoundryClient client = new CloudFoundryClient(cloudCredentials, targetUrl, organization, cloudSpace,
-                    proxyConfig, selfSigned);
-            client.login();
-
-            String domain = client.getDefaultDomain().getName();
-
-
-            // Create services before push
-            List<CloudService> currentServicesList = client.getServices();
-            List<String> currentServicesNames = new ArrayList<String>();
-            for (CloudService currentService : currentServicesList) {
-                currentServicesNames.add(currentService.getName());
-            }
-
-            for (Service service : servicesToCreate) {
-                boolean createService = true;
-                if (currentServicesNames.contains(service.name)) {
-                    if (service.resetService) {
-                        listener.getLogger().println("Service " + service.name + " already exists, resetting.");
-                        client.deleteService(service.name);
-                        listener.getLogger().println("Service deleted.");
-                    } else {
-                        createService = false;
-                        listener.getLogger().println("Service " + service.name + " already exists, skipping creation.");
-                    }
-                }
-                if (createService) {
-                    listener.getLogger().println("Creating service " + service.name);
-                    CloudService cloudService = new CloudService();
-                    cloudService.setName(service.name);
-                    cloudService.setLabel(service.type);
-                    cloudService.setPlan(service.plan);
-                    client.createService(cloudService);
-                }
-            }
+            phaseStart = System.nanoTime();
+            pooledClient = ClientSessionPool.getInstance().getClient(targetUrl, organization, cloudSpace,
+                    credentials, selfSigned, proxyConfig);
+            final CloudFoundryClient client = pooledClient;
+            timings.record(null, DeploymentTimingAction.Phase.LOGIN, phaseStart);
+
+            // The metadata of the space is shared with the other builds that deploy to it
+            String spaceKey = SpaceMetadataCache.spaceKey(client, target, organization, cloudSpace);
+            phaseStart = System.nanoTime();
+            String domain = SpaceMetadataCache.getInstance().getDefaultDomain(client, spaceKey).getName();
+            timings.record(null, DeploymentTimingAction.Phase.DOMAIN, phaseStart);
+
+            // Create services in the background, each app will only wait for the services it binds
+            phaseStart = System.nanoTime();
+            serviceProvisioner = new ServiceProvisioner(client, spaceKey, listener,
+                    TimeUnit.SECONDS.toMillis(pluginTimeout));
+            final ServiceProvisioner provisioner = serviceProvisioner;
+            provisioner.start(servicesToCreate);
+            timings.record(null, DeploymentTimingAction.Phase.SERVICES, phaseStart);
 
             // Get all deployment info
+            phaseStart = System.nanoTime();
             List<DeploymentInfo> allDeploymentInfo = new ArrayList<DeploymentInfo>();
             if (manifestChoice.value.equals("manifestFile")) {
                 // Read manifest file
@@ -182,18 +195,51 @@ public class CloudFoundryPushPublisher extends Recorder {
                         new DeploymentInfo(build, listener, listener.getLogger(),
                                 manifestChoice, jenkinsBuildName, domain));
             }
-
-            boolean success = true;
+            timings.record(null, DeploymentTimingAction.Phase.MANIFEST, phaseStart);
             for (DeploymentInfo deploymentInfo : allDeploymentInfo) {
-                boolean lastSuccess = processOneApp(client, deploymentInfo, build, listener);
-                // If an app fails, the build status is failure, but we should still try pushing them
-                success = success && lastSuccess;
+                results.reserve(deploymentInfo.getAppName());
+            }
+
+            // Records the fingerprints and bits digests of the deployed apps, for the next builds
+            build.addAction(new DeploymentFingerprintAction());
+
+            // The agent logs in by itself, and the bits go from the workspace straight to the target
+            final AppDeployer.AgentConnection agentConnection;
+            if (runOnAgent) {
+                agentConnection = new AppDeployer.AgentConnection(targetUrl, organization, cloudSpace,
+                        credentials.getId(), credentials.getUsername(), Secret.toString(credentials.getPassword()),
+                        selfSigned, proxyConfig);
+            } else {
+                agentConnection = null;
+            }
+
+            ParallelPusher pusher = new ParallelPusher(parallelPushes, listener);
+            boolean pushed = pusher.pushAll(allDeploymentInfo, new ParallelPusher.AppPush() {
+                public boolean push(DeploymentInfo deploymentInfo, BuildListener appListener)
+                        throws IOException, InterruptedException {
+                    long servicesStart = System.nanoTime();
+                    boolean servicesReady = provisioner.awaitServices(deploymentInfo.getServicesNames());
+                    build.getAction(DeploymentTimingAction.class).record(deploymentInfo.getAppName(),
+                            DeploymentTimingAction.Phase.SERVICES, servicesStart);
+                    if (!servicesReady) {
+                        appListener.getLogger().println("ERROR: The services of " + deploymentInfo.getAppName()
+                                + " could not be created, skipping its push.");
+                        return false;
+                    }
+                    return processOneApp(client, agentConnection, deploymentInfo, build, appListener);
+                }
+            });
+            // The services that no app binds must be created too
+            if (!provisioner.awaitAll()) {
+                listener.getLogger().println("ERROR: Some services could not be created.");
+                return false;
             }
-            return success;
+            return pushed;
         } catch (MalformedURLException e) {
             listener.getLogger().println("ERROR: The target URL is not valid: " + e.getMessage());
             return false;
         } catch (ResourceAccessException e) {
+            ClientSessionPool.getInstance().invalidate(pooledClient);
             if (e.getCause() instanceof UnknownHostException) {
                 listener.getLogger().println("ERROR: Unknown host: " + e.getMessage());
             } else if (e.getCause() instanceof SSLPeerUnverifiedException) {
@@ -203,6 +249,8 @@ public class CloudFoundryPushPublisher extends Recorder {
             }
             return false;
         } catch (CloudFoundryException e) {
+            // The session may have been rejected by the target, the next build will log in again
+            ClientSessionPool.getInstance().invalidate(pooledClient);
             if (e.getMessage().equals("403 Access token denied.")) {
                 listener.getLogger().println("ERROR: Wrong username or password: " + e.getMessage());
             } else {
@@ -232,237 +280,125 @@ public class CloudFoundryPushPublisher extends Recorder {
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
             return false;
-        }
-    }
-
-    private boolean processOneApp(CloudFoundryClient client, DeploymentInfo deploymentInfo, AbstractBuild build,
-                                  BuildListener listener) throws IOException, InterruptedException {
-        try {
-            String appName = deploymentInfo.getAppName();
-            String appURI = "https://" + deploymentInfo.getHostname() + "." + deploymentInfo.getDomain();
-            addToAppURIs(appURI);
-
-            listener.getLogger().println("Pushing " + appName + " app to " + target);
-
-            // Create app if it doesn't already exist, or if resetIfExists parameter is true
-            boolean createdNewApp = createApplicationIfNeeded(client, listener, deploymentInfo, appURI);
-
-            // Unbind all routes if no-route parameter is set
-            if (deploymentInfo.isNoRoute()) {
-                client.updateApplicationUris(appName, new ArrayList<String>());
-            }
-
-            // Add environment variables
-            if (!deploymentInfo.getEnvVars().isEmpty()) {
-                Map<String, Object> appEnvs = client.getApplicationEnvironment(appName);
-                Map<String, String> newEnvs = new HashMap<String, String>();
-                // Unavoidable cast warning
-                newEnvs.putAll((Map<String, String>) appEnvs.get("environment_json"));
-                newEnvs.putAll(deploymentInfo.getEnvVars());
-                client.updateApplicationEnv(appName, newEnvs);
-            }
-
-            // Change number of instances
-            if (deploymentInfo.getInstances() > 1) {
-                client.updateApplicationInstances(appName, deploymentInfo.getInstances());
-            }
-
-            // Push files
-            listener.getLogger().println("Pushing app bits.");
-            pushAppBits(build, listener, deploymentInfo, client);
-
-            // Start or restart application
-            StartingInfo startingInfo;
-            if (createdNewApp) {
-                listener.getLogger().println("Starting application.");
-                startingInfo = client.startApplication(appName);
-            } else {
-                listener.getLogger().println("Restarting application.");
-                startingInfo = client.restartApplication(appName);
-            }
-
-            // Start printing the staging logs
-            printStagingLogs(client, listener, startingInfo, appName);
-
-            CloudApplication app = client.getApplication(appName);
-
-            // Keep checking to see if the app is running
-            int running = 0;
-            int totalInstances = 0;
-            for (int tries = 0; tries < pluginTimeout; tries++) {
-                running = 0;
-                InstancesInfo instancesInfo = client.getApplicationInstances(app);
-                if (instancesInfo != null) {
-                    List<InstanceInfo> listInstances = instancesInfo.getInstances();
-                    totalInstances = listInstances.size();
-                    for (InstanceInfo instance : listInstances) {
-                        if (instance.getState() == InstanceState.RUNNING) {
-                            running++;
-                        }
-                    }
-                    if (running == totalInstances && totalInstances > 0) {
-                        break;
-                    }
-                }
-                Thread.sleep(1000);
+        } finally {
+            if (serviceProvisioner != null) {
+                serviceProvisioner.shutdown();
             }
-
-            String instanceGrammar = "instances";
-            if (running == 1)
-                instanceGrammar = "instance";
-            listener.getLogger().println(running + " " + instanceGrammar + " running out of " + totalInstances);
-
-            if (running > 0) {
-                if (running != totalInstances) {
-                    listener.getLogger().println("WARNING: Some instances of the application are not running.");
-                }
-                if (deploymentInfo.isNoRoute()) {
-                    listener.getLogger().println("Application is now running. (No route)");
-                } else {
-                    listener.getLogger().println("Application is now running at " + appURI);
-                }
-                listener.getLogger().println("Cloud Foundry push successful.");
-                return true;
-            } else {
-                listener.getLogger().println(
-                        "ERROR: The application failed to start after " + pluginTimeout + " seconds.");
-                listener.getLogger().println("Cloud Foundry push failed.");
-                return false;
-            }
-        } catch (CloudFoundryException e) {
-            listener.getLogger().println("ERROR: Unknown CloudFoundryException: " + e.getMessage());
-            listener.getLogger().println("ERROR: Cloud Foundry error code: " + e.getCloudFoundryErrorCode());
-            if (e.getDescription() != null) {
-                listener.getLogger().println("ERROR: " + e.getDescription());
+            try {
+                results.save();
+            } catch (IOException e) {
+                listener.getLogger().println("WARNING: Could not save the deployment results: " + e.getMessage());
             }
-            e.printStackTrace(listener.getLogger());
-            return false;
-        } catch (FileNotFoundException e) {
-            listener.getLogger().println("ERROR: Could not find file: " + e.getMessage());
-            return false;
-        } catch (ZipException e) {
-            listener.getLogger().println("ERROR: ZipException: " + e.getMessage());
-            return false;
-        } catch (IllegalArgumentException e) {
-            listener.getLogger().println("ERROR: IllegalArgumentException: " + e.getMessage());
-            return false;
         }
     }
 
-    private boolean createApplicationIfNeeded(CloudFoundryClient client, BuildListener listener,
-                                              DeploymentInfo deploymentInfo, String appURI) {
-        // Check if app already exists
-        List<CloudApplication> existingApps = client.getApplications();
-        boolean createNewApp = true;
-        for (CloudApplication app : existingApps) {
-            if (app.getName().equals(deploymentInfo.getAppName())) {
-                if (resetIfExists) {
-                    listener.getLogger().println("App already exists, resetting.");
-                    client.deleteApplication(deploymentInfo.getAppName());
-                    listener.getLogger().println("App deleted.");
-                } else {
-                    createNewApp = false;
-                    listener.getLogger().println("App already exists, skipping creation.");
-                }
-                break;
+    private boolean processOneApp(CloudFoundryClient client, AppDeployer.AgentConnection agentConnection,
+                                  DeploymentInfo deploymentInfo, AbstractBuild build, BuildListener listener)
+            throws IOException, InterruptedException {
+        String appName = deploymentInfo.getAppName();
+        String appURI = "https://" + deploymentInfo.getHostname() + "." + deploymentInfo.getDomain();
+
+        // Only the newest of several queued builds needs to push the app
+        if (coalesceDeploys) {
+            int supersedingBuild = DeployCoalescing.findSupersedingBuild(build, this, appName);
+            if (supersedingBuild > 0) {
+                listener.getLogger().println("Skipping the push of " + appName + ", superseded by #"
+                        + supersedingBuild + ".");
+                build.getAction(DeploymentResultAction.class).add(DeploymentResultAction.AppDeployment.superseded(
+                        appName, target, appURI, deploymentInfo.isNoRoute(), supersedingBuild));
+                return true;
             }
         }
 
-        // Create app if it doesn't exist
-        if (createNewApp) {
-            listener.getLogger().println("Creating new app.");
-            String stack = deploymentInfo.getStack();
-            if (stack != null && client.getStack(stack) == null) {
-                throw new IllegalArgumentException("Stack " + stack + " does not exist on the target.");
+        // A promoted app gets the droplet that the upstream build deployed, instead of being staged again
+        DeploymentResultAction.AppDeployment upstream = null;
+        if (promoteDroplets) {
+            upstream = DropletPromoter.findUpstreamDeployment(build, appName);
+            if (upstream == null) {
+                listener.getLogger().println("ERROR: No upstream build deployed " + appName
+                        + ", there is no droplet to promote.");
+                return false;
             }
-            Staging staging = new Staging(deploymentInfo.getCommand(), deploymentInfo.getBuildpack(),
-                    deploymentInfo.getStack(), deploymentInfo.getTimeout());
-            List<String> uris = new ArrayList<String>();
-            // Pass an empty List as the uri list if no-route is set
-            if (!deploymentInfo.isNoRoute()) {
-                uris.add(appURI);
+            if (!target.equals(upstream.getTarget())) {
+                listener.getLogger().println("ERROR: The upstream build deployed " + appName + " to "
+                        + upstream.getTarget() + ", its droplet can only be promoted to the same target.");
+                return false;
+            }
+            if (upstream.getUpdatedAt() == 0) {
+                listener.getLogger().println("ERROR: The upstream build did not record which droplet of "
+                        + appName + " it deployed, it must be built again to be promoted.");
+                return false;
             }
-            List<String> services = deploymentInfo.getServicesNames();
-            client.createApplication(deploymentInfo.getAppName(), staging, deploymentInfo.getMemory(), uris, services);
+            listener.getLogger().println("Promoting " + appName + " app to " + target);
+        } else {
+            listener.getLogger().println("Pushing " + appName + " app to " + target);
         }
 
-        return createNewApp;
-    }
-
-    private void pushAppBits(AbstractBuild build, BuildListener listener, DeploymentInfo deploymentInfo,
-                             CloudFoundryClient client)
-            throws IOException, InterruptedException, ZipException {
-        FilePath appPath = new FilePath(build.getWorkspace(), deploymentInfo.getAppPath());
-
-        if (appPath.getChannel() != Jenkins.MasterComputer.localChannel) {
-            if (appPath.isDirectory()) {
-                // The build is distributed, and a directory
-                // We need to make a copy of the target directory on the master
-                File tempAppFile = File.createTempFile("appFile", null); // This is on the master
-                OutputStream outputStream = new FileOutputStream(tempAppFile);
-                appPath.zip(outputStream);
-
-                // We now have a zip file on the master, extract it into a directory
-                ZipFile appZipFile = new ZipFile(tempAppFile);
-                File tempOutputDirectory = new File(tempAppFile.getAbsolutePath().split("\\.")[0]);
-                appZipFile.extractAll(tempOutputDirectory.getAbsolutePath());
-                // appPath.zip() creates a top level directory that we want to remove
-                File[] listFiles = tempOutputDirectory.listFiles();
-                if (listFiles != null && listFiles.length == 1) {
-                    tempOutputDirectory = listFiles[0];
-                } else {
-                    // This should never happen because appPath.zip() always makes a directory
-                    throw new IllegalStateException("Unzipped output directory was empty.");
-                }
-                // We can now use tempOutputDirectory which is a copy of the target directory but on master
-                client.uploadApplication(deploymentInfo.getAppName(), tempOutputDirectory);
-                // Delete temporary files
-                boolean deleted = tempAppFile.delete();
-                try {
-                    FileUtils.deleteDirectory(tempOutputDirectory);
-                } catch (IOException e) {
-                    deleted = false;
-                }
-                if (!deleted) {
-                    listener.getLogger().println("WARNING: Temporary files were not deleted successfully.");
-                }
+        DeploymentFingerprintAction fingerprintAction = build.getAction(DeploymentFingerprintAction.class);
+        boolean fingerprintApp = skipUnchanged && !resetIfExists;
+        String appKey = DeployLockManager.appKey(target, organization, cloudSpace, appName);
 
-            } else {
-                // If the target path is a single file, we can just use an InputStream
-                // The CF client will make a temp file on the master from the InputStream
-                client.uploadApplication(deploymentInfo.getAppName(), appPath.getName(), appPath.read());
+        AppDeployer deployer = new AppDeployer(target, organization, cloudSpace, resetIfExists, pluginTimeout,
+                minRunningInstances);
+        DeploymentTimingAction timings = build.getAction(DeploymentTimingAction.class);
 
-            }
-        } else {
-            // If the build is not distributed, we can convert the FilePath to a File without problems
-            File targetFile = new File(appPath.toURI());
-            client.uploadApplication(deploymentInfo.getAppName(), targetFile);
+        // Other builds, of this job or others, may be pushing the same app to the same space
+        long lockStart = System.nanoTime();
+        DeployLockManager.Lock lock = DeployLockManager.getInstance().acquire(appKey, build.getFullDisplayName(),
+                listener.getLogger());
+        timings.record(appName, DeploymentTimingAction.Phase.LOCK_WAIT, lockStart);
+        if (lock.getWaitMillis() > 0) {
+            listener.getLogger().println("Waited " + lock.getWaitMillis() + " ms for the lock of " + appName + ".");
         }
-    }
 
-    private void printStagingLogs(CloudFoundryClient client, BuildListener listener,
-                                  StartingInfo startingInfo, String appName) {
-        // First, try streamLogs()
+        long pushStart = System.nanoTime();
+        AppDeployer.Result result;
         try {
-            JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(listener);
-            client.streamLogs(appName, logListener);
-        } catch (Exception e) {
-            // In case of failure, try getStagingLogs()
-            listener.getLogger().println("WARNING: Exception occurred trying to get staging logs via websocket. " +
-                    "Switching to alternate method.");
-            int offset = 0;
-            String stagingLogs = client.getStagingLogs(startingInfo, offset);
-            if (stagingLogs == null) {
-                listener.getLogger().println("WARNING: Could not get staging logs with alternate method. " +
-                        "Cannot display staging logs.");
-            } else {
-                while (stagingLogs != null) {
-                    listener.getLogger().println(stagingLogs);
-                    offset += stagingLogs.length();
-                    stagingLogs = client.getStagingLogs(startingInfo, offset);
+            // The previous deployments are only known by the master, so they are looked up before the push, and
+            // under the lock so that the last push of the app by another build is finished and recorded
+            String previousFingerprint = null;
+            // The bits are only trusted to be on the target when unchanged apps may be skipped, since the app may
+            // have been pushed outside of Jenkins since then
+            String previousBitsDigest = null;
+            if (fingerprintApp) {
+                DeploymentFingerprintAction.Attempt previous =
+                        DeploymentFingerprintAction.findLastAttempt(build, appKey);
+                // A failed or unfinished attempt may have left anything on the target
+                if (previous != null && previous.isSuccess()) {
+                    previousFingerprint = previous.getFingerprint();
+                    previousBitsDigest = previous.getBitsDigest();
                 }
             }
-        }
+            fingerprintAction.startAttempt(appKey);
+
+            if (upstream != null) {
+                // The droplet doesn't go through the workspace, so it is always copied by the master
+                URL targetUrl = new URL(target);
+                DropletPromoter promoter = new DropletPromoter(client.getCloudControllerUrl(),
+                        ClientSessionPool.getInstance().getAccessToken(client),
+                        buildProxyConfiguration(targetUrl), selfSigned, CloudControllerThrottle.forTarget(targetUrl));
+                result = deployer.promote(client, deploymentInfo, upstream, promoter, listener);
+            } else if (agentConnection != null) {
+                result = build.getWorkspace().act(new AppDeployer.AgentDeployment(deployer, agentConnection,
+                        deploymentInfo, fingerprintApp, previousFingerprint, previousBitsDigest, listener));
+            } else {
+                result = deployer.deploy(client, deploymentInfo, build.getWorkspace(), fingerprintApp,
+                        previousFingerprint, previousBitsDigest, listener);
+            }
+            fingerprintAction.finishAttempt(appKey, result.getFingerprint(), result.getBitsDigest(),
+                    result.isSuccess());
+        } finally {
+            lock.release();
+        }
+
+        timings.addAll(result.getTimings());
+        timings.addUploadedBytes(result.getUploadedBytes());
+        build.getAction(DeploymentResultAction.class).add(new DeploymentResultAction.AppDeployment(appName, target,
+                appURI, deploymentInfo.isNoRoute(), result.getAppGuid(), result.getUpdatedAt(),
+                result.getRunningInstances(),
+                result.getTotalInstances(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pushStart),
+                result.isSuccess()));
+        return result.isSuccess();
     }
 
     private static HttpProxyConfiguration buildProxyConfiguration(URL targetURL) {
@@ -485,13 +421,11 @@ public class CloudFoundryPushPublisher extends Recorder {
         return BuildStepMonitor.NONE;
     }
 
-    public List<String> getAppURIs() {
-        return appURIs;
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+        return Collections.singletonList(new DeploymentTimingProjectAction(project));
     }
 
-    public void addToAppURIs(String appURI) {
-        this.appURIs.add(appURI);
-    }
 
     /**
      * This class contains the choice of using either a manifest file or the optional Jenkins configuration.
@@ -659,13 +593,10 @@ public class CloudFoundryPushPublisher extends Recorder {
                 StandardUsernamePasswordCredentials credentials =
                         CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(credentialsId));
 
-                CloudCredentials cloudCredentials =
-                        new CloudCredentials(credentials.getUsername(), Secret.toString(credentials.getPassword()));
                 HttpProxyConfiguration proxyConfig = buildProxyConfiguration(targetUrl);
 
-                CloudFoundryClient client = new CloudFoundryClient(cloudCredentials, targetUrl, organization,
-                        cloudSpace, proxyConfig, selfSigned);
-                client.login();
+                CloudFoundryClient client = ClientSessionPool.getInstance().getClient(targetUrl, organization,
+                        cloudSpace, credentials, selfSigned, proxyConfig);
                 client.getCloudInfo();
                 if (targetUrl.getHost().startsWith("api.")) {
                     return FormValidation.okWithMarkup("<b>Connection successful!</b>");
@@ -739,6 +670,16 @@ public class CloudFoundryPushPublisher extends Recorder {
             return FormValidation.validatePositiveInteger(value);
         }
 
+        @SuppressWarnings("unused")
+        public FormValidation doCheckParallelPushes(@QueryParameter String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        @SuppressWarnings("unused")
+        public FormValidation doCheckMinRunningInstances(@QueryParameter String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         @SuppressWarnings("unused")
         public FormValidation doCheckMemory(@QueryParameter String value) {
             return FormValidation.validatePositiveInteger(value);
@@ -777,6 +718,10 @@ public class CloudFoundryPushPublisher extends Recorder {
         if (pluginTimeout == 0) { // Introduced in 1.5
             this.pluginTimeout = DEFAULT_PLUGIN_TIMEOUT;
         }
+        if (parallelPushes == 0) { // Introduced in 1.5.1, like skipUnchanged whose default is false
+            this.parallelPushes = DEFAULT_PARALLEL_PUSHES;
+        }
+        appURIs = null; // Moved to DeploymentResultAction
         return this;
     }
 }
@@ -0,0 +1,76 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+
+/**
+ * Finds out whether the deployment of a build is superseded by a newer build of the same job, so that only the
+ * newest of several queued builds pushes the apps.
+ * A newer build supersedes this one if it is queued or running, and the job still deploys to the same space, or if
+ * it already deployed the same app successfully. A queued or running build is expected to deploy the same apps: if it
+ * fails before its deployment, the apps stay as they were before this build.
+ */
+public final class DeployCoalescing {
+
+    private DeployCoalescing() {
+    }
+
+    /**
+     * Returns the number of the newer build that supersedes the deployment of an app by the given build, or 0 if
+     * there is none.
+     */
+    public static int findSupersedingBuild(AbstractBuild<?, ?> build, CloudFoundryPushPublisher publisher,
+                                           String appName) {
+        AbstractProject<?, ?> project = build.getProject();
+        boolean sameSpace = deploysToSameSpace(project, publisher);
+
+        for (AbstractBuild<?, ?> newer = build.getNextBuild(); newer != null; newer = newer.getNextBuild()) {
+            if (newer.isBuilding()) {
+                if (sameSpace) {
+                    return newer.getNumber();
+                }
+            } else if (newer.getResult() != null && newer.getResult().isBetterOrEqualTo(Result.SUCCESS)
+                    && hasDeployed(newer, appName)) {
+                return newer.getNumber();
+            }
+        }
+        // A queued build doesn't have a number yet, it will get the next one
+        if (sameSpace && project.isInQueue()) {
+            return project.getNextBuildNumber();
+        }
+        return 0;
+    }
+
+    /**
+     * The newer builds use the current configuration of the job, which may deploy somewhere else.
+     */
+    private static boolean deploysToSameSpace(AbstractProject<?, ?> project, CloudFoundryPushPublisher publisher) {
+        CloudFoundryPushPublisher current = project.getPublishersList().get(CloudFoundryPushPublisher.class);
+        return current != null && equal(current.target, publisher.target)
+                && equal(current.organization, publisher.organization)
+                && equal(current.cloudSpace, publisher.cloudSpace);
+    }
+
+    private static boolean hasDeployed(AbstractBuild<?, ?> build, String appName) {
+        DeploymentResultAction results = build.getAction(DeploymentResultAction.class);
+        if (results == null) {
+            return false;
+        }
+        for (DeploymentResultAction.AppDeployment deployment : results.getDeployments()) {
+            if (deployment.getAppName().equals(appName) && deployment.isSuccess()
+                    && deployment.getSupersededBy() == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the pushes of the same app to the same space, by all the builds of the master, whatever their jobs.
+ * Two pushes of an app at the same time would interleave their deletes, creates, uploads and restarts. The pushes
+ * of an app wait for each other in the order they asked, and the pushes of other apps are not held up.
+ */
+public final class DeployLockManager {
+
+    private static final DeployLockManager INSTANCE = new DeployLockManager();
+
+    // The locks of the apps that are being pushed, or waited for
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private DeployLockManager() {
+    }
+
+    public static DeployLockManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key of the lock of an app.
+     */
+    public static String appKey(String target, String organization, String cloudSpace, String appName) {
+        // The lock is shared by all the users of the space
+        return target + "|" + organization + "|" + cloudSpace + "|" + appName;
+    }
+
+    /**
+     * Waits until no other build pushes the app, and locks it. The lock must be released by the same thread.
+     *
+     * @param holder the name of the build that locks the app, which is shown to the builds that wait for it
+     * @param logger where to tell that the push has to wait
+     */
+    public Lock acquire(String key, String holder, PrintStream logger) throws InterruptedException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(key, entry);
+            }
+            entry.users++;
+        }
+
+        long start = System.nanoTime();
+        try {
+            // Unlike tryLock(), this doesn't jump ahead of the pushes that are already waiting
+            if (!entry.lock.tryLock(0, TimeUnit.MILLISECONDS)) {
+                String currentHolder = entry.holder;
+                logger.println("Waiting for the push of the app by "
+                        + (currentHolder == null ? "another build" : currentHolder) + " to finish.");
+                entry.lock.lockInterruptibly();
+            }
+        } catch (InterruptedException e) {
+            release(key, entry);
+            throw e;
+        }
+        entry.holder = holder;
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Lock(key, entry, waitMillis);
+    }
+
+    private void release(String key, Entry entry) {
+        synchronized (entries) {
+            if (--entry.users == 0) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * The number of apps that are locked or waited for, for the tests.
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Entry {
+
+        private final ReentrantLock lock = new ReentrantLock(true);
+        // The builds that hold the lock or wait for it, guarded by the entries
+        private int users;
+        private volatile String holder;
+    }
+
+    /**
+     * The lock of an app, held by a push.
+     */
+    public class Lock {
+
+        private final String key;
+        private final Entry entry;
+        private final long waitMillis;
+        private boolean released;
+
+        private Lock(String key, Entry entry, long waitMillis) {
+            this.key = key;
+            this.entry = entry;
+            this.waitMillis = waitMillis;
+        }
+
+        /**
+         * How long the push waited for the lock.
+         */
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        /**
+         * Lets the next push of the app go. Can be called more than once.
+         */
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            entry.holder = null;
+            entry.lock.unlock();
+            DeployLockManager.this.release(key, entry);
+        }
+    }
+}
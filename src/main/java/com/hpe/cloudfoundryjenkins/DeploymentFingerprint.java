@@ -0,0 +1,102 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Util;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes a digest of everything that defines the deployment of an app: its target, its settings,
+ * and the names and contents of all its files.
+ * If two deployments have the same fingerprint, pushing the second one would not change anything.
+ */
+public final class DeploymentFingerprint {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DeploymentFingerprint() {
+    }
+
+    public static String compute(ApplicationArchive archive, DeploymentInfo deploymentInfo,
+                                 String target, String organization, String cloudSpace) throws IOException {
+        MessageDigest digest = newDigest();
+
+        update(digest, target);
+        update(digest, organization);
+        update(digest, cloudSpace);
+
+        update(digest, deploymentInfo.getAppName());
+        update(digest, String.valueOf(deploymentInfo.getMemory()));
+        update(digest, String.valueOf(deploymentInfo.getInstances()));
+        update(digest, String.valueOf(deploymentInfo.getTimeout()));
+        update(digest, deploymentInfo.getBuildpack());
+        update(digest, deploymentInfo.getStack());
+        update(digest, deploymentInfo.getCommand());
+        update(digest, String.valueOf(deploymentInfo.isNoRoute()));
+        update(digest, deploymentInfo.getHostname());
+        update(digest, deploymentInfo.getDomain());
+
+        // Env vars and services are sorted, their order doesn't change the deployment
+        Map<String, String> envVars = new TreeMap<String, String>(deploymentInfo.getEnvVars());
+        for (Map.Entry<String, String> envVar : envVars.entrySet()) {
+            update(digest, envVar.getKey());
+            update(digest, envVar.getValue());
+        }
+        List<String> servicesNames = new ArrayList<String>(deploymentInfo.getServicesNames());
+        Collections.sort(servicesNames);
+        for (String serviceName : servicesNames) {
+            update(digest, serviceName);
+        }
+
+        updateBits(digest, archive);
+        return Util.toHexString(digest.digest());
+    }
+
+    /**
+     * Computes a digest of the names and contents of the files of an app only.
+     * If two deployments have the same bits digest, the app doesn't need to be uploaded and staged again for its
+     * files.
+     */
+    public static String computeBits(ApplicationArchive archive) throws IOException {
+        MessageDigest digest = newDigest();
+        updateBits(digest, archive);
+        return Util.toHexString(digest.digest());
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+    }
+
+    private static void updateBits(MessageDigest digest, ApplicationArchive archive) throws IOException {
+        for (ApplicationArchive.Entry entry : archive.getEntries()) {
+            update(digest, entry.getName());
+            if (!entry.isDirectory()) {
+                digest.update(entry.getSha1Digest());
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(UTF_8));
+        }
+        // Separates the values, so that moving characters from one value to the next changes the fingerprint
+        digest.update((byte) 0);
+    }
+}
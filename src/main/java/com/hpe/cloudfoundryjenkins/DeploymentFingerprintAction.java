@@ -0,0 +1,146 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.InvisibleAction;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records, for a build, the attempts to deploy apps, with the fingerprints of the apps that were successfully deployed
+ * or found unchanged, and the digests of the bits they were given. Later builds use the most recent attempt to deploy
+ * an app to the same space to find out whether it must be pushed again, and whether its bits must be uploaded. If
+ * that attempt failed or never finished, what it left on the target is unknown, and the app is pushed in full.
+ */
+public class DeploymentFingerprintAction extends InvisibleAction {
+
+    // Builds that did not deploy anything are skipped, but we don't want to load the whole history
+    private static final int MAX_BUILDS_SEARCHED = 20;
+
+    // Orders the attempts of concurrent builds, even when they start in the same millisecond
+    private static final AtomicLong LAST_START = new AtomicLong();
+
+    /**
+     * An attempt of a build to deploy an app to a space.
+     */
+    public static class Attempt {
+
+        private final long startedAt;
+        private final String fingerprint;
+        private final String bitsDigest;
+        private final boolean success;
+
+        Attempt(long startedAt, String fingerprint, String bitsDigest, boolean success) {
+            this.startedAt = startedAt;
+            this.fingerprint = fingerprint;
+            this.bitsDigest = bitsDigest;
+            this.success = success;
+        }
+
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /**
+         * The fingerprint of the app, or null if the attempt did not succeed or did not compute it.
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * The digest of the bits the app was given, or null if they were not uploaded nor found unchanged.
+         */
+        public String getBitsDigest() {
+            return bitsDigest;
+        }
+
+        /**
+         * Whether the attempt finished, and the app was left running.
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+    }
+
+    // Keyed by DeployLockManager.appKey()
+    private Map<String, Attempt> attempts = new HashMap<String, Attempt>();
+
+    // The fingerprints and bits digests of the successful deployments, recorded before the attempts were. They don't
+    // tell whether a later attempt failed, so they are only read to be dropped, and the apps are pushed in full once.
+    @Deprecated
+    private Map<String, String> fingerprints;
+    @Deprecated
+    private Map<String, String> bitsDigests;
+
+    /**
+     * Records that the build starts deploying an app. Until it finishes, the state of the app is unknown.
+     */
+    public synchronized void startAttempt(String appKey) {
+        attempts.put(appKey, new Attempt(nextStart(), null, null, false));
+    }
+
+    /**
+     * Records how the deployment of an app that was started by {@link #startAttempt} went.
+     *
+     * @param fingerprint the fingerprint of the app, only kept if the deployment succeeded
+     * @param bitsDigest  the digest of the bits uploaded to the app, kept even if the deployment then failed
+     */
+    public synchronized void finishAttempt(String appKey, String fingerprint, String bitsDigest, boolean success) {
+        Attempt started = attempts.get(appKey);
+        attempts.put(appKey, new Attempt(started.getStartedAt(), success ? fingerprint : null, bitsDigest, success));
+    }
+
+    public synchronized Attempt getAttempt(String appKey) {
+        return attempts.get(appKey);
+    }
+
+    @SuppressWarnings("unused")
+    private Object readResolve() {
+        if (attempts == null) { // Introduced in 1.5.1
+            attempts = new HashMap<String, Attempt>();
+        }
+        fingerprints = null;
+        bitsDigests = null;
+        return this;
+    }
+
+    private static long nextStart() {
+        while (true) {
+            long last = LAST_START.get();
+            long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (LAST_START.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent attempt of another build of the project to deploy an app to the same space, or null if
+     * there is none. Builds that ran concurrently are searched too, so a build that started earlier but deploys later
+     * finds the deployment of a newer build.
+     *
+     * @param appKey the key of the app, from {@link DeployLockManager#appKey}
+     */
+    public static Attempt findLastAttempt(AbstractBuild<?, ?> build, String appKey) {
+        Attempt last = null;
+        AbstractBuild<?, ?> other = build.getParent().getLastBuild();
+        for (int i = 0; other != null && i < MAX_BUILDS_SEARCHED; i++) {
+            DeploymentFingerprintAction action = other == build ? null
+                    : other.getAction(DeploymentFingerprintAction.class);
+            if (action != null) {
+                Attempt attempt = action.getAttempt(appKey);
+                if (attempt != null && (last == null || attempt.getStartedAt() > last.getStartedAt())) {
+                    last = attempt;
+                }
+            }
+            other = other.getPreviousBuild();
+        }
+        return last;
+    }
+}
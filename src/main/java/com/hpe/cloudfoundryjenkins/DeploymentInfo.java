@@ -16,6 +16,7 @@ import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -27,8 +28,11 @@ import java.util.Map;
  * Contains all deployment info of a single application.
  * The class is in charge of default values, of expanding token macros,
  * and of reading from the Jenkins config if needed.
+ * It is serializable so that an app can be pushed from the agent of the workspace.
  */
-public class DeploymentInfo {
+public class DeploymentInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String appName;
     private int memory;
@@ -41,6 +45,9 @@ public class DeploymentInfo {
     private String command;
     private String domain;
     private String stack;
+    // Whether the instances and memory were given, or are the defaults which must not resize an existing app
+    private boolean instancesSet;
+    private boolean memorySet;
 
     private Map<String, String> envVars = new HashMap<String, String>();
     private List<String> servicesNames = new ArrayList<String>();
@@ -109,6 +116,7 @@ public class DeploymentInfo {
                     DescriptorImpl.DEFAULT_MEMORY);
             memory = DescriptorImpl.DEFAULT_MEMORY;
         } else {
+            memorySet = true;
             // The YAML parser from ManifestReader might make the memory value an Integer or a String
             // depending on whether or not there is a unit at the end of the value
             if (mem instanceof Integer) {
@@ -130,6 +138,7 @@ public class DeploymentInfo {
                     logger.println("WARNING: Unknown unit for memory in manifest. Using default value: " +
                             DescriptorImpl.DEFAULT_MEMORY);
                     memory = DescriptorImpl.DEFAULT_MEMORY;
+                    memorySet = false;
                 }
             }
         }
@@ -143,6 +152,7 @@ public class DeploymentInfo {
 
         // Non-important optional attributes, no need to warn
         Integer instances = (Integer) manifestJson.get("instances");
+        instancesSet = instances != null;
         if (instances == null) {
             instances = DescriptorImpl.DEFAULT_INSTANCES;
         }
@@ -221,6 +231,7 @@ public class DeploymentInfo {
             appName = jenkinsBuildName;
         }
         this.memory = jenkinsConfig.memory;
+        memorySet = memory != 0;
         if (memory == 0) {
             logger.println("WARNING: Missing value for memory. Using default value: " + DescriptorImpl.DEFAULT_MEMORY);
             memory = DescriptorImpl.DEFAULT_MEMORY;
@@ -232,6 +243,7 @@ public class DeploymentInfo {
         }
 
         this.instances = jenkinsConfig.instances;
+        instancesSet = instances != 0;
         if (instances == 0) {
             instances = DescriptorImpl.DEFAULT_INSTANCES;
         }
@@ -327,6 +339,13 @@ public class DeploymentInfo {
         return memory;
     }
 
+    /**
+     * Whether the memory was given by the manifest or the Jenkins config, instead of being the default.
+     */
+    public boolean isMemorySet() {
+        return memorySet;
+    }
+
     public String getHostname() {
         return hostname;
     }
@@ -335,6 +354,13 @@ public class DeploymentInfo {
         return instances;
     }
 
+    /**
+     * Whether the instances were given by the manifest or the Jenkins config, instead of being the default.
+     */
+    public boolean isInstancesSet() {
+        return instancesSet;
+    }
+
     public String getStack() {
         return stack;
     }
@@ -0,0 +1,252 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.XmlFile;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The apps that a build deployed, with their URIs and instances.
+ * They are stored in their own file in the build directory, instead of in the build itself, and only loaded when
+ * they are shown or asked for, so that the builds that are kept in memory don't hold them.
+ */
+public class DeploymentResultAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentResultAction.class.getName());
+    private static final String FILE_NAME = "cloudfoundry-deployments.xml";
+
+    /**
+     * The result of the deployment of one app.
+     */
+    public static class AppDeployment {
+
+        private final String appName;
+        private final String target;
+        private final String uri;
+        private final boolean noRoute;
+        private final String guid;
+        private final long updatedAt;
+        private final int runningInstances;
+        private final int totalInstances;
+        private final long millis;
+        private final boolean success;
+        private final int supersededBy;
+
+        /**
+         * @param guid      the GUID of the app, or null if it is not known
+         * @param updatedAt when the app was last updated on the target once it was running, or 0 if it is not known
+         */
+        public AppDeployment(String appName, String target, String uri, boolean noRoute, String guid,
+                             long updatedAt, int runningInstances, int totalInstances, long millis,
+                             boolean success) {
+            this(appName, target, uri, noRoute, guid, updatedAt, runningInstances, totalInstances, millis, success,
+                    0);
+        }
+
+        private AppDeployment(String appName, String target, String uri, boolean noRoute, String guid,
+                              long updatedAt, int runningInstances, int totalInstances, long millis,
+                              boolean success, int supersededBy) {
+            this.appName = appName;
+            this.target = target;
+            this.uri = uri;
+            this.noRoute = noRoute;
+            this.guid = guid;
+            this.updatedAt = updatedAt;
+            this.runningInstances = runningInstances;
+            this.totalInstances = totalInstances;
+            this.millis = millis;
+            this.success = success;
+            this.supersededBy = supersededBy;
+        }
+
+        /**
+         * An app that was not pushed, since a newer build of the job deploys it.
+         */
+        public static AppDeployment superseded(String appName, String target, String uri, boolean noRoute,
+                                               int supersedingBuild) {
+            return new AppDeployment(appName, target, uri, noRoute, null, 0, 0, 0, 0, true, supersedingBuild);
+        }
+
+        public String getAppName() {
+            return appName;
+        }
+
+        /**
+         * The target the app was deployed to, or null for the deployments recorded before it was.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * Whether the URI of the app is not mapped to it.
+         */
+        public boolean isNoRoute() {
+            return noRoute;
+        }
+
+        public String getGuid() {
+            return guid;
+        }
+
+        /**
+         * When the app was last updated on the target once it was running, in ms, or 0 if it is not known.
+         * The app is updated whenever it gets another droplet, so this tells whether it still has the droplet
+         * of this deployment.
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        public int getRunningInstances() {
+            return runningInstances;
+        }
+
+        public int getTotalInstances() {
+            return totalInstances;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * The number of the newer build that deploys the app instead, or 0 if it was pushed by this build.
+         */
+        public int getSupersededBy() {
+            return supersededBy;
+        }
+    }
+
+    private transient Run<?, ?> run;
+    // Held strongly while the build runs, until they are saved, in the order of the manifest
+    private transient Map<String, AppDeployment> pending;
+    private transient volatile Reference<List<AppDeployment>> deployments;
+
+    public DeploymentResultAction() {
+        this.pending = new LinkedHashMap<String, AppDeployment>();
+    }
+
+    /**
+     * Keeps the place of an app, so that the apps are listed in the order of the manifest however they are pushed.
+     */
+    public synchronized void reserve(String appName) {
+        if (!pending.containsKey(appName)) {
+            pending.put(appName, null);
+        }
+    }
+
+    public synchronized void add(AppDeployment deployment) {
+        pending.put(deployment.getAppName(), deployment);
+    }
+
+    /**
+     * Writes the deployments to the build directory, once all the apps were pushed.
+     */
+    public synchronized void save() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        List<AppDeployment> saved = getPending();
+        getFile().write(saved);
+        deployments = new SoftReference<List<AppDeployment>>(Collections.unmodifiableList(saved));
+        pending = null;
+    }
+
+    /**
+     * Returns the deployments of the build, in the order the apps were done.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<AppDeployment> getDeployments() {
+        if (pending != null) {
+            return getPending();
+        }
+        List<AppDeployment> result = deployments == null ? null : deployments.get();
+        if (result == null) {
+            result = Collections.emptyList();
+            XmlFile file = getFile();
+            if (file.exists()) {
+                try {
+                    result = Collections.unmodifiableList((List<AppDeployment>) file.read());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not read " + file, e);
+                }
+            }
+            deployments = new SoftReference<List<AppDeployment>>(result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the URIs of the deployed apps, including the ones that are not mapped.
+     */
+    public List<String> getAppURIs() {
+        List<String> uris = new ArrayList<String>();
+        for (AppDeployment deployment : getDeployments()) {
+            uris.add(deployment.getUri());
+        }
+        return uris;
+    }
+
+    private List<AppDeployment> getPending() {
+        List<AppDeployment> result = new ArrayList<AppDeployment>();
+        for (AppDeployment deployment : pending.values()) {
+            // The apps that were never pushed are left out
+            if (deployment != null) {
+                result.add(deployment);
+            }
+        }
+        return result;
+    }
+
+    private XmlFile getFile() {
+        return new XmlFile(new File(run.getRootDir(), FILE_NAME));
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return null;
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
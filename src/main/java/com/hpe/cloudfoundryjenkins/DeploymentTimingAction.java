@@ -0,0 +1,136 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.Action;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each phase of a deployment took, for the whole build and for each app.
+ * Durations are measured with a monotonic clock. They are shown on the build page,
+ * and in a trend graph on the project page.
+ */
+public class DeploymentTimingAction implements Action {
+
+    public enum Phase {
+        CREDENTIALS("Credentials lookup"),
+        LOGIN("Login"),
+        DOMAIN("Domain lookup"),
+        SERVICES("Services"),
+        MANIFEST("Manifest parsing"),
+        LOCK_WAIT("Lock wait"),
+        FINGERPRINT("Fingerprinting"),
+        APP_CREATE("App creation"),
+        ENV_UPDATE("Env update"),
+        UPLOAD("Upload"),
+        DROPLET_COPY("Droplet copy"),
+        START("Start"),
+        STAGING_LOGS("Staging"),
+        READINESS("Readiness wait");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * The duration of one phase, for one app or for the whole build if the app name is null.
+     */
+    public static class PhaseTiming implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String appName;
+        private final Phase phase;
+        private final long millis;
+
+        PhaseTiming(String appName, Phase phase, long millis) {
+            this.appName = appName;
+            this.phase = phase;
+            this.millis = millis;
+        }
+
+        public String getAppName() {
+            return appName;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    private final List<PhaseTiming> timings = new ArrayList<PhaseTiming>();
+    private long uploadedBytes;
+
+    /**
+     * Records a phase that started at the given System.nanoTime() value, and ends now.
+     */
+    public synchronized void record(String appName, Phase phase, long startNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        timings.add(new PhaseTiming(appName, phase, millis));
+    }
+
+    /**
+     * Adds the timings of a push that was measured elsewhere, for instance on an agent.
+     */
+    public synchronized void addAll(Collection<PhaseTiming> phaseTimings) {
+        timings.addAll(phaseTimings);
+    }
+
+    public synchronized void addUploadedBytes(long bytes) {
+        uploadedBytes += bytes;
+    }
+
+    public synchronized List<PhaseTiming> getTimings() {
+        return Collections.unmodifiableList(new ArrayList<PhaseTiming>(timings));
+    }
+
+    /**
+     * Returns the total duration of each phase, summed over all the apps.
+     * Apps that were pushed in parallel are added up, so the sum can exceed the duration of the build.
+     */
+    public synchronized Map<Phase, Long> getTotals() {
+        Map<Phase, Long> totals = new EnumMap<Phase, Long>(Phase.class);
+        for (PhaseTiming timing : timings) {
+            Long total = totals.get(timing.phase);
+            totals.put(timing.phase, (total == null ? 0 : total) + timing.millis);
+        }
+        return totals;
+    }
+
+    public synchronized long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry deployment phases";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+
+import java.awt.Color;
+import java.util.Map;
+
+/**
+ * Shows on the project page a trend graph of the duration of each deployment phase over the last builds.
+ */
+public class DeploymentTimingProjectAction implements Action {
+
+    private static final int MAX_BUILDS = 30;
+
+    private final AbstractProject<?, ?> project;
+
+    public DeploymentTimingProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public boolean hasTimings() {
+        AbstractBuild<?, ?> build = project.getLastBuild();
+        for (int i = 0; build != null && i < MAX_BUILDS; i++) {
+            if (build.getAction(DeploymentTimingAction.class) != null) {
+                return true;
+            }
+            build = build.getPreviousBuild();
+        }
+        return false;
+    }
+
+    /**
+     * The trend graph, available at trend/png and trend/map.
+     */
+    public Graph getTrend() {
+        final AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+        if (lastBuild == null) {
+            return null;
+        }
+        return new Graph(lastBuild.getTimestamp(), 500, 250) {
+            @Override
+            protected JFreeChart createGraph() {
+                DataSetBuilder<String, NumberOnlyBuildLabel> dataSet =
+                        new DataSetBuilder<String, NumberOnlyBuildLabel>();
+                AbstractBuild<?, ?> build = lastBuild;
+                for (int i = 0; build != null && i < MAX_BUILDS; i++) {
+                    DeploymentTimingAction action = build.getAction(DeploymentTimingAction.class);
+                    if (action != null) {
+                        NumberOnlyBuildLabel label = new NumberOnlyBuildLabel(build);
+                        for (Map.Entry<DeploymentTimingAction.Phase, Long> total : action.getTotals().entrySet()) {
+                            dataSet.add(total.getValue() / 1000.0, total.getKey().getDisplayName(), label);
+                        }
+                    }
+                    build = build.getPreviousBuild();
+                }
+
+                JFreeChart chart = ChartFactory.createLineChart(null, null, "seconds", dataSet.build(),
+                        PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.white);
+                CategoryPlot plot = chart.getCategoryPlot();
+                plot.setBackgroundPaint(Color.white);
+                plot.setRangeGridlinePaint(Color.lightGray);
+                CategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+                plot.setDomainAxis(domainAxis);
+                domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+                domainAxis.setLowerMargin(0.0);
+                domainAxis.setUpperMargin(0.0);
+                domainAxis.setCategoryMargin(0.0);
+                return chart;
+            }
+        };
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Cloud Foundry deployment phases";
+    }
+
+    public String getUrlName() {
+        return "cloudFoundryTimings";
+    }
+}
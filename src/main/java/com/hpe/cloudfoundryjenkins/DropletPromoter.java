@@ -0,0 +1,407 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.HttpProxyConfiguration;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpHeaders;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.web.client.HttpClientErrorException;
+import org.cloudfoundry.client.lib.org.springframework.web.client.HttpServerErrorException;
+import org.cloudfoundry.client.lib.org.springframework.web.client.HttpStatusCodeException;
+import org.cloudfoundry.client.lib.org.springframework.web.client.ResourceAccessException;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the droplet of an app that was already staged into another app of the same target, which may be in another
+ * organization or space, so that a build promoted from one space to the next is not staged again.
+ * The CF client has no droplet calls, so they are made with the REST API of the Cloud Controller and the access token
+ * of the client: the droplet is downloaded from the source app and streamed to the target app, without being stored
+ * on the master, and the target then copies it to its blobstore in the background.
+ * <p>
+ * The calls go through the {@link CloudControllerThrottle} of the target, like the calls of the client. Only the
+ * calls that read something are retried: the droplet itself is streamed once.
+ */
+public class DropletPromoter {
+
+    private static final String PREFIX = DropletPromoter.class.getName();
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(PREFIX + ".connectTimeout",
+            (int) TimeUnit.SECONDS.toMillis(30));
+    private static final int READ_TIMEOUT = Integer.getInteger(PREFIX + ".readTimeout",
+            (int) TimeUnit.MINUTES.toMillis(2));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long INITIAL_DELAY = 500;
+    private static final long MAX_DELAY = 5000;
+
+    private final URL controllerUrl;
+    private final String accessToken;
+    private final HttpProxyConfiguration proxyConfig;
+    private final boolean selfSigned;
+    private final CloudControllerThrottle throttle;
+
+    public DropletPromoter(URL controllerUrl, String accessToken, HttpProxyConfiguration proxyConfig,
+                           boolean selfSigned, CloudControllerThrottle throttle) {
+        this.controllerUrl = controllerUrl;
+        this.accessToken = accessToken;
+        this.proxyConfig = proxyConfig;
+        this.selfSigned = selfSigned;
+        this.throttle = throttle;
+    }
+
+    /**
+     * Returns the deployment of the app with the given name by the upstream build which triggered this build,
+     * or null if this build was not triggered by a build that deployed the app.
+     */
+    public static DeploymentResultAction.AppDeployment findUpstreamDeployment(AbstractBuild<?, ?> build,
+                                                                             String appName) {
+        List<Cause> causes = build.getCauses();
+        for (Cause cause : causes) {
+            if (!(cause instanceof Cause.UpstreamCause)) {
+                continue;
+            }
+            Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause) cause;
+            AbstractProject<?, ?> project = Jenkins.getInstance().getItemByFullName(
+                    upstreamCause.getUpstreamProject(), AbstractProject.class);
+            AbstractBuild<?, ?> upstream = project == null ? null
+                    : project.getBuildByNumber(upstreamCause.getUpstreamBuild());
+            DeploymentResultAction results = upstream == null ? null
+                    : upstream.getAction(DeploymentResultAction.class);
+            if (results == null) {
+                continue;
+            }
+            for (DeploymentResultAction.AppDeployment deployment : results.getDeployments()) {
+                if (deployment.getAppName().equals(appName) && deployment.isSuccess()
+                        && deployment.getGuid() != null) {
+                    return deployment;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the droplet of the target app with the droplet of the source app, and waits until the target has
+     * stored it. The target app then starts from this droplet, without staging.
+     *
+     * @param sourceUpdatedAt when the source app was last updated once it was deployed by the upstream build: the
+     *                        droplet is only copied if the source app was not updated since, and so still has the
+     *                        droplet of that build
+     * @return the size of the droplet, in bytes
+     */
+    public long promote(final String sourceAppGuid, long sourceUpdatedAt, final String targetAppGuid,
+                        long timeoutMillis) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        checkUpdatedAt(sourceAppGuid, sourceUpdatedAt);
+        HttpURLConnection download = call("download the droplet of app " + sourceAppGuid, true,
+                new Callable<HttpURLConnection>() {
+                    public HttpURLConnection call() throws IOException {
+                        return openDroplet(sourceAppGuid);
+                    }
+                });
+        // The droplet is now the one of the download, so an app that was deployed again in between is caught
+        checkUpdatedAt(sourceAppGuid, sourceUpdatedAt);
+
+        final CountingInputStream in = new CountingInputStream(download.getInputStream());
+        JSONObject job;
+        try {
+            job = call("upload the droplet to app " + targetAppGuid, false, new Callable<JSONObject>() {
+                public JSONObject call() throws IOException {
+                    // Even the rate limited uploads can't be made again, the droplet was streamed
+                    if (in.getByteCount() > 0) {
+                        throw new IOException("The target rejected the droplet once it was streamed.");
+                    }
+                    return upload(in, targetAppGuid);
+                }
+            });
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        // The droplet is copied to the blobstore of the target in the background
+        long delay = INITIAL_DELAY;
+        while (true) {
+            JSONObject entity = job.getJSONObject("entity");
+            String jobStatus = entity.optString("status");
+            if ("finished".equals(jobStatus)) {
+                return in.getByteCount();
+            }
+            if ("failed".equals(jobStatus)) {
+                JSONObject details = entity.optJSONObject("error_details");
+                throw new IOException("The target could not store the droplet of app " + targetAppGuid
+                        + (details == null ? "" : ": " + details.optString("description")));
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("The target did not store the droplet of app " + targetAppGuid + " after "
+                        + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + " seconds.");
+            }
+            Thread.sleep(delay);
+            delay = Math.min(MAX_DELAY, delay * 2);
+            final String jobGuid = job.getJSONObject("metadata").getString("guid");
+            job = call("get job " + jobGuid, true, new Callable<JSONObject>() {
+                public JSONObject call() throws IOException {
+                    return get("/v2/jobs/" + jobGuid);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns when an app was last updated, in ms, to the second, or 0 if it is not known.
+     */
+    static long getUpdatedAt(CloudEntity.Meta meta) {
+        if (meta == null) {
+            return 0;
+        }
+        Date updated = meta.getUpdated() != null ? meta.getUpdated() : meta.getCreated();
+        return updated == null ? 0 : TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(updated.getTime()));
+    }
+
+    private void checkUpdatedAt(final String appGuid, long expected) throws IOException {
+        JSONObject metadata = call("get app " + appGuid, true, new Callable<JSONObject>() {
+            public JSONObject call() throws IOException {
+                return get("/v2/apps/" + appGuid);
+            }
+        }).getJSONObject("metadata");
+        String updated = metadata.optString("updated_at", null);
+        if (updated == null || updated.equals("null")) {
+            updated = metadata.optString("created_at");
+        }
+        if (parseTimestamp(updated) != expected) {
+            throw new IOException("App " + appGuid + " was updated at " + updated
+                    + " since the upstream build deployed it, and may not have its droplet anymore.");
+        }
+    }
+
+    /**
+     * Parses a timestamp of the Cloud Controller, like 2015-08-25T19:19:49Z or 2015-08-25T19:19:49+00:00.
+     */
+    static long parseTimestamp(String timestamp) throws IOException {
+        String normalized = timestamp.replaceFirst("Z$", "+0000").replaceFirst("([+-]\\d\\d):(\\d\\d)$", "$1$2");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+        try {
+            return format.parse(normalized).getTime();
+        } catch (ParseException e) {
+            throw new IOException("Could not parse the timestamp " + timestamp, e);
+        }
+    }
+
+    /**
+     * Opens the download of the droplet of an app.
+     */
+    private HttpURLConnection openDroplet(String appGuid) throws IOException {
+        HttpURLConnection download = open(new URL(controllerUrl, "/v2/apps/" + appGuid + "/droplet/download"),
+                "GET", true);
+        download.setInstanceFollowRedirects(false);
+        if (download.getResponseCode() / 100 == 3) {
+            // The droplet is in the blobstore, which has its own signed URL and must not be given the token
+            String location = download.getHeaderField("Location");
+            download.disconnect();
+            download = open(new URL(location), "GET", false);
+        }
+        checkResponse(download);
+        return download;
+    }
+
+    /**
+     * Streams the droplet to the target app, as the multipart form that the Cloud Controller expects, and returns the
+     * job that stores it.
+     */
+    private JSONObject upload(InputStream droplet, String targetAppGuid) throws IOException {
+        String boundary = "----cloudfoundry-jenkins-" + Long.toHexString(System.nanoTime());
+        HttpURLConnection upload = open(new URL(controllerUrl,
+                "/v2/apps/" + targetAppGuid + "/droplet/upload?async=true"), "PUT", true);
+        upload.setDoOutput(true);
+        upload.setChunkedStreamingMode(BUFFER_SIZE);
+        upload.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+        OutputStream out = upload.getOutputStream();
+        try {
+            out.write(("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"droplet\"; filename=\"droplet.tgz\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes("US-ASCII"));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = droplet.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+
+        checkResponse(upload);
+        return readJson(upload);
+    }
+
+    private JSONObject get(String path) throws IOException {
+        HttpURLConnection connection = open(new URL(controllerUrl, path), "GET", true);
+        checkResponse(connection);
+        return readJson(connection);
+    }
+
+    /**
+     * Makes a call through the throttle, and turns its failures into IOExceptions.
+     */
+    private <T> T call(String description, boolean retryable, final Callable<T> call) throws IOException {
+        try {
+            return throttle.call(description, retryable, new Callable<T>() {
+                public T call() throws Exception {
+                    try {
+                        return call.call();
+                    } catch (IOException e) {
+                        // Lets the throttle tell the unreachable target from the error responses
+                        throw new ResourceAccessException(e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (HttpStatusCodeException e) {
+            String message = e instanceof CloudFoundryException && ((CloudFoundryException) e).getDescription() != null
+                    ? e.getMessage() + ", " + ((CloudFoundryException) e).getDescription() : e.getMessage();
+            throw new IOException("Could not " + description + ": " + message, e);
+        } catch (ResourceAccessException e) {
+            throw new IOException("Could not " + description + ": " + e.getMessage(), e.getCause());
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not " + description, e);
+        }
+    }
+
+    private HttpURLConnection open(URL url, String method, boolean authorized) throws IOException {
+        HttpURLConnection connection;
+        if (proxyConfig == null) {
+            connection = (HttpURLConnection) url.openConnection();
+        } else {
+            connection = (HttpURLConnection) url.openConnection(new Proxy(Proxy.Type.HTTP,
+                    new InetSocketAddress(proxyConfig.getProxyHost(), proxyConfig.getProxyPort())));
+        }
+        if (selfSigned && connection instanceof HttpsURLConnection) {
+            trustAll((HttpsURLConnection) connection);
+        }
+        // A target that stops answering fails the promotion instead of holding the build and the lock of the app
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod(method);
+        if (authorized) {
+            connection.setRequestProperty("Authorization", "bearer " + accessToken);
+        }
+        return connection;
+    }
+
+    private static JSONObject readJson(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            return JSONObject.fromObject(IOUtils.toString(in, "UTF-8"));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Throws the error of a response that is not a success, with its headers, like the client does.
+     */
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code / 100 == 2) {
+            return;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // The status line has no name
+            if (header.getKey() != null) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        String statusText = connection.getResponseMessage();
+        InputStream in = connection.getErrorStream();
+        byte[] body = new byte[0];
+        if (in != null) {
+            try {
+                body = IOUtils.toByteArray(in);
+                JSONObject error = JSONObject.fromObject(new String(body, "UTF-8"));
+                if (error.has("description")) {
+                    statusText = statusText + ", " + error.getString("description");
+                }
+            } catch (RuntimeException e) {
+                // Not a Cloud Controller error
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        HttpStatus status;
+        try {
+            status = HttpStatus.valueOf(code);
+        } catch (IllegalArgumentException e) {
+            status = code >= 500 ? HttpStatus.INTERNAL_SERVER_ERROR : HttpStatus.BAD_REQUEST;
+        }
+        if (status.series() == HttpStatus.Series.SERVER_ERROR) {
+            throw new HttpServerErrorException(status, statusText, headers, body, null);
+        }
+        throw new HttpClientErrorException(status, statusText, headers, body, null);
+    }
+
+    /**
+     * Accepts any certificate, like the client does for the targets with a self-signed certificate.
+     */
+    private static void trustAll(HttpsURLConnection connection) throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{new X509TrustManager() {
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+            connection.setSSLSocketFactory(context.getSocketFactory());
+            connection.setHostnameVerifier(new HostnameVerifier() {
+                public boolean verify(String hostname, SSLSession session) {
+                    return true;
+                }
+            });
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not trust the self-signed certificate of " + connection.getURL(), e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Functions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk index of the SHA-1 digests of the files of an application directory, stored next to the workspace
+ * on the machine where the files are. Entries are keyed by relative path, and are only reused if the size and last
+ * modification time of the file did not change, so only new or modified files need to be read again.
+ */
+class FileHashIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(FileHashIndex.class.getName());
+
+    private static final int MAGIC = 0x43464849; // "CFHI"
+    private static final int VERSION = 1;
+
+    // Files modified this close to the moment the index was written may have changed again within the same
+    // timestamp granularity, so their digests are not trusted
+    private static final long RACY_WINDOW = 2000;
+
+    // Reading small files through a memory mapping is slower than a plain read
+    private static final long MAPPED_READ_THRESHOLD = 256 * 1024;
+    private static final long MAPPED_CHUNK_SIZE = 64 * 1024 * 1024;
+    // Windows locks a mapped file until the mapping is garbage collected, so the workspace could not be wiped or
+    // checked out again in the meantime: the files are always read there. This is checked on the machine of the files
+    private static final boolean MAPPED_READS = !Functions.isWindows();
+
+    private final Map<String, Entry> entries;
+    private final long writtenAt;
+
+    private FileHashIndex(Map<String, Entry> entries, long writtenAt) {
+        this.entries = entries;
+        this.writtenAt = writtenAt;
+    }
+
+    /**
+     * Loads an index file. A missing, unreadable or outdated index file gives an empty index.
+     */
+    static FileHashIndex load(File indexFile) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        long writtenAt = 0;
+        if (indexFile.isFile()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                try {
+                    if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                        writtenAt = in.readLong();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            String name = in.readUTF();
+                            long size = in.readLong();
+                            long lastModified = in.readLong();
+                            byte[] sha1 = new byte[20];
+                            in.readFully(sha1);
+                            entries.put(name, new Entry(size, lastModified, sha1));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Ignoring unreadable file hash index " + indexFile, e);
+                entries.clear();
+            }
+        }
+        return new FileHashIndex(entries, writtenAt);
+    }
+
+    /**
+     * Returns the indexed digest of a file, or null if the file is unknown or may have changed.
+     */
+    byte[] lookup(String name, long size, long lastModified) {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.size != size || entry.lastModified != lastModified) {
+            return null;
+        }
+        if (lastModified >= writtenAt - RACY_WINDOW) {
+            return null;
+        }
+        return entry.sha1;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replaces the index file with the given entries, which should be the current files of the directory.
+     * The file is written to a temporary file first, so that a concurrent build never reads a partial index.
+     */
+    static void save(File indexFile, Map<String, Entry> entries) throws IOException {
+        File parent = indexFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        File tempFile = new File(indexFile.getPath() + ".tmp" + Thread.currentThread().getId());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.write(entry.getValue().sha1);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            // On Windows, renaming onto an existing file fails
+            if (!indexFile.delete() || !tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+                throw new IOException("Could not replace file hash index " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Computes the SHA-1 digest of a file, using a memory mapping for large files.
+     */
+    static byte[] sha1(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            if (MAPPED_READS && size >= MAPPED_READ_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAPPED_CHUNK_SIZE, size - position));
+                    digest.update(buffer);
+                }
+            } else {
+                update(digest, inputStream);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+    }
+
+    static class Entry {
+
+        final long size;
+        final long lastModified;
+        final byte[] sha1;
+
+        Entry(long size, long lastModified, byte[] sha1) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+    }
+}
@@ -0,0 +1,675 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+import org.cloudfoundry.client.lib.UploadStatusCallback;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An application archive backed by a directory or a zip file (war, jar...) that can be on a remote agent.
+ * The size and SHA-1 digest of every file are computed where the files are, and only these fingerprints are sent
+ * to the master. The CF client uses them to ask the target which files it already knows, and only the contents
+ * of the other files are then streamed from the agent into the upload, without any temporary file on the master.
+ * Once the upload callback of the archive is told which files the target has, the others are all streamed from the
+ * agent in a single transfer, rather than with a remote call for each file.
+ */
+public class FilePathApplicationArchive implements ApplicationArchive {
+
+    private final FilePath source;
+    private final boolean zipFile;
+    private final List<Entry> entries;
+    private final AtomicLong bytesRead = new AtomicLong();
+    // The files that the target does not have, streamed together from the agent, or null until the target said
+    // which files it has
+    private Batch batch;
+
+    private FilePathApplicationArchive(FilePath source, boolean zipFile, List<FileFingerprint> fingerprints) {
+        this.source = source;
+        this.zipFile = zipFile;
+        this.entries = new ArrayList<Entry>();
+        for (FileFingerprint fingerprint : fingerprints) {
+            entries.add(new FilePathEntry(fingerprint));
+        }
+    }
+
+    /**
+     * Creates an archive from a directory, computing the fingerprints of its files on the machine they are on.
+     * The digests of the files are kept in the given index file between builds, so that only the files that
+     * changed are read again. The index file can be null.
+     */
+    public static FilePathApplicationArchive fromDirectory(FilePath directory, FilePath indexFile)
+            throws IOException, InterruptedException {
+        String indexPath = indexFile == null ? null : indexFile.getRemote();
+        return new FilePathApplicationArchive(directory, false, directory.act(new DirectoryFingerprinter(indexPath)));
+    }
+
+    /**
+     * Creates an archive from the entries of a zip file, computing their fingerprints on the machine it is on.
+     */
+    public static FilePathApplicationArchive fromZipFile(FilePath file) throws IOException, InterruptedException {
+        return new FilePathApplicationArchive(file, true, file.act(new ZipFingerprinter()));
+    }
+
+    public String getFilename() {
+        return source.getName();
+    }
+
+    public Iterable<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the number of bytes read so far from the files of this archive, that is the bytes that were uploaded.
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Returns the callback to give to the upload of this archive. Once the target has told which files it already
+     * has, the callback starts streaming all the others from the agent, in the order the upload reads them.
+     */
+    public UploadStatusCallback newUploadCallback() {
+        return new UploadStatusCallback() {
+            public void onCheckResources() {
+            }
+
+            public void onMatchedFileNames(Set<String> matchedFileNames) {
+                try {
+                    startBatch(matchedFileNames);
+                } catch (IOException e) {
+                    // The files are then read one by one
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void onProcessMatchedResources(int length) {
+            }
+
+            public boolean onProgress(String status) {
+                return false;
+            }
+
+            public void onError(String description) {
+            }
+        };
+    }
+
+    /**
+     * Stops streaming the files that were not uploaded, if the upload failed.
+     */
+    public synchronized void close() {
+        if (batch != null) {
+            batch.close();
+            batch = null;
+        }
+    }
+
+    private synchronized void startBatch(Set<String> matchedFileNames) throws IOException, InterruptedException {
+        close();
+        // Local files are read directly, there is no remote call to save
+        if (!source.isRemote()) {
+            return;
+        }
+        List<FileFingerprint> unmatched = new ArrayList<FileFingerprint>();
+        for (Entry entry : entries) {
+            FileFingerprint fingerprint = ((FilePathEntry) entry).fingerprint;
+            if (!fingerprint.directory && !matchedFileNames.contains(fingerprint.name)) {
+                unmatched.add(fingerprint);
+            }
+        }
+        if (unmatched.size() > 1) {
+            batch = new Batch(unmatched);
+        }
+    }
+
+    private synchronized InputStream openFromBatch(FileFingerprint fingerprint) throws IOException {
+        return batch == null ? null : batch.open(fingerprint);
+    }
+
+    private class FilePathEntry implements Entry {
+
+        private final FileFingerprint fingerprint;
+
+        FilePathEntry(FileFingerprint fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public boolean isDirectory() {
+            return fingerprint.directory;
+        }
+
+        public String getName() {
+            return fingerprint.name;
+        }
+
+        public long getSize() {
+            return fingerprint.size;
+        }
+
+        public byte[] getSha1Digest() {
+            return fingerprint.sha1;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (fingerprint.directory) {
+                return null;
+            }
+            // Only called for the files that the target does not already have
+            try {
+                InputStream in = openFromBatch(fingerprint);
+                if (in != null) {
+                    return new CountingInputStream(in);
+                }
+                if (zipFile) {
+                    in = source.act(new ZipEntryReader(fingerprint.name));
+                } else {
+                    in = source.child(fingerprint.name).read();
+                }
+                return new CountingInputStream(in);
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted while reading " + fingerprint.name)
+                        .initCause(e);
+            }
+        }
+    }
+
+    /**
+     * The contents of a list of files, streamed one after the other from the agent through a pipe. The files are
+     * served in order, each one being the next bytes of the stream, as many as its size.
+     */
+    private class Batch {
+
+        private final List<FileFingerprint> files;
+        private final InputStream in;
+        private final Future<Void> writer;
+        private int next;
+        private BatchEntryStream current;
+
+        Batch(List<FileFingerprint> files) throws IOException, InterruptedException {
+            this.files = files;
+            List<String> names = new ArrayList<String>();
+            long[] sizes = new long[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                names.add(files.get(i).name);
+                sizes[i] = files.get(i).size;
+            }
+            Pipe pipe = Pipe.createRemoteToLocal();
+            writer = source.actAsync(new BatchWriter(zipFile, names, sizes, pipe));
+            in = pipe.getIn();
+        }
+
+        /**
+         * Returns the stream of the given file, or null if it is not one of the next files of the batch. The files
+         * that come before it in the batch are skipped.
+         */
+        InputStream open(FileFingerprint fingerprint) throws IOException {
+            int index = files.subList(next, files.size()).indexOf(fingerprint);
+            if (index == -1) {
+                return null;
+            }
+            if (current != null) {
+                current.skipRemaining();
+            }
+            for (int i = 0; i < index; i++) {
+                skip(files.get(next + i).size);
+            }
+            next += index + 1;
+            current = new BatchEntryStream(fingerprint.size);
+            return current;
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        throw writerFailure();
+                    }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        /**
+         * Returns why the stream ended before all its files were read.
+         */
+        private IOException writerFailure() {
+            try {
+                writer.get();
+                return new EOFException("The files of " + source + " ended unexpectedly");
+            } catch (ExecutionException e) {
+                return new IOException("Could not read the files of " + source, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new InterruptedIOException("Interrupted while reading the files of " + source);
+            }
+        }
+
+        void close() {
+            writer.cancel(true);
+            try {
+                in.close();
+            } catch (IOException e) {
+                // The agent stops writing either way
+            }
+        }
+
+        /**
+         * A file of the batch, which ends after its size. Closing it skips what was not read of it.
+         */
+        private class BatchEntryStream extends InputStream {
+
+            private long remaining;
+
+            BatchEntryStream(long size) {
+                this.remaining = size;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (FilePathApplicationArchive.this) {
+                    if (remaining == 0) {
+                        return -1;
+                    }
+                    int n = in.read(b, off, (int) Math.min(len, remaining));
+                    if (n == -1) {
+                        throw writerFailure();
+                    }
+                    remaining -= n;
+                    return n;
+                }
+            }
+
+            void skipRemaining() throws IOException {
+                skip(remaining);
+                remaining = 0;
+            }
+
+            @Override
+            public void close() throws IOException {
+                synchronized (FilePathApplicationArchive.this) {
+                    skipRemaining();
+                }
+            }
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                bytesRead.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead.addAndGet(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The name, size and SHA-1 digest of a file, relative to the root of the application.
+     * Directory names end with a slash, and have no size or digest.
+     */
+    static class FileFingerprint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final boolean directory;
+        final long size;
+        final byte[] sha1;
+
+        FileFingerprint(String name, boolean directory, long size, byte[] sha1) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.sha1 = sha1;
+        }
+    }
+
+    /**
+     * Walks a directory tree and computes the fingerprints of all its files.
+     * This runs on the machine where the directory is, so the file contents never go through the channel.
+     * If an index file is given, the digests of the files that did not change since the last run are read from it,
+     * and the other files are hashed in parallel.
+     */
+    static class DirectoryFingerprinter implements FilePath.FileCallable<List<FileFingerprint>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String indexFile;
+
+        DirectoryFingerprinter(String indexFile) {
+            this.indexFile = indexFile;
+        }
+
+        public List<FileFingerprint> invoke(File root, VirtualChannel channel)
+                throws IOException, InterruptedException {
+            FileHashIndex index = indexFile == null ? null : FileHashIndex.load(new File(indexFile));
+
+            List<File> files = new ArrayList<File>();
+            List<String> names = new ArrayList<String>();
+            // Directories are null in the files list
+            Set<String> ancestors = new HashSet<String>();
+            ancestors.add(root.getCanonicalPath());
+            collect(root, "", files, names, ancestors);
+
+            byte[][] digests = new byte[files.size()][];
+            long[] sizes = new long[files.size()];
+            long[] lastModified = new long[files.size()];
+            List<Integer> toHash = new ArrayList<Integer>();
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                if (file == null) {
+                    continue;
+                }
+                sizes[i] = file.length();
+                lastModified[i] = file.lastModified();
+                if (index != null) {
+                    digests[i] = index.lookup(names.get(i), sizes[i], lastModified[i]);
+                }
+                if (digests[i] == null) {
+                    toHash.add(i);
+                }
+            }
+            hashFiles(files, toHash, digests);
+
+            List<FileFingerprint> fingerprints = new ArrayList<FileFingerprint>();
+            Map<String, FileHashIndex.Entry> indexEntries = new HashMap<String, FileHashIndex.Entry>();
+            for (int i = 0; i < files.size(); i++) {
+                if (files.get(i) == null) {
+                    fingerprints.add(new FileFingerprint(names.get(i), true, 0, null));
+                } else {
+                    fingerprints.add(new FileFingerprint(names.get(i), false, sizes[i], digests[i]));
+                    indexEntries.put(names.get(i), new FileHashIndex.Entry(sizes[i], lastModified[i], digests[i]));
+                }
+            }
+            // The index is only written again if files were added, modified or deleted
+            if (index != null && (!toHash.isEmpty() || index.size() != indexEntries.size())) {
+                FileHashIndex.save(new File(indexFile), indexEntries);
+            }
+            return fingerprints;
+        }
+
+        /**
+         * Adds the files of a directory and of its subdirectories. The symbolic links to directories are followed,
+         * except the ones to a directory that contains them, which would never end.
+         *
+         * @param ancestors the canonical paths of the directory and of the directories that contain it
+         */
+        private void collect(File directory, String prefix, List<File> files, List<String> names,
+                             Set<String> ancestors) throws IOException {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                throw new IOException("Could not list the files of " + directory);
+            }
+            // Sorted, so that the archive is the same from one build to the next
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    String canonicalPath = child.getCanonicalPath();
+                    if (!ancestors.add(canonicalPath)) {
+                        continue;
+                    }
+                    String name = prefix + child.getName() + "/";
+                    files.add(null);
+                    names.add(name);
+                    collect(child, name, files, names, ancestors);
+                    ancestors.remove(canonicalPath);
+                } else {
+                    files.add(child);
+                    names.add(prefix + child.getName());
+                }
+            }
+        }
+
+        private static void hashFiles(final List<File> files, List<Integer> toHash, final byte[][] digests)
+                throws IOException, InterruptedException {
+            if (toHash.size() <= 1) {
+                for (int i : toHash) {
+                    digests[i] = FileHashIndex.sha1(files.get(i));
+                }
+                return;
+            }
+            int threads = Math.min(toHash.size(), Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for (final int i : toHash) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws IOException {
+                            digests[i] = FileHashIndex.sha1(files.get(i));
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Could not compute the digest of a file", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Computes the fingerprints of all the entries of a zip file, on the machine where the file is.
+     */
+    static class ZipFingerprinter implements FilePath.FileCallable<List<FileFingerprint>> {
+
+        private static final long serialVersionUID = 1L;
+
+        public List<FileFingerprint> invoke(File file, VirtualChannel channel) throws IOException {
+            List<FileFingerprint> fingerprints = new ArrayList<FileFingerprint>();
+            MessageDigest digest = newSha1Digest();
+            ZipFile zip = new ZipFile(file);
+            try {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    if (zipEntry.isDirectory()) {
+                        fingerprints.add(new FileFingerprint(zipEntry.getName(), true, 0, null));
+                    } else {
+                        digest.reset();
+                        InputStream inputStream = zip.getInputStream(zipEntry);
+                        long size;
+                        try {
+                            size = update(digest, inputStream);
+                        } finally {
+                            inputStream.close();
+                        }
+                        fingerprints.add(new FileFingerprint(zipEntry.getName(), false, size, digest.digest()));
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+            return fingerprints;
+        }
+    }
+
+    /**
+     * Opens a single entry of a zip file, and streams it back through the channel, for the entries that are not
+     * streamed with the others.
+     * The zip file is closed when the returned stream is closed.
+     */
+    static class ZipEntryReader implements FilePath.FileCallable<InputStream> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String entryName;
+
+        ZipEntryReader(String entryName) {
+            this.entryName = entryName;
+        }
+
+        public InputStream invoke(File file, VirtualChannel channel) throws IOException {
+            final ZipFile zip = new ZipFile(file);
+            ZipEntry zipEntry = zip.getEntry(entryName);
+            if (zipEntry == null) {
+                zip.close();
+                throw new FileNotFoundException(entryName + " in " + file);
+            }
+            InputStream entryStream = new FilterInputStream(zip.getInputStream(zipEntry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+            return new RemoteInputStream(entryStream);
+        }
+    }
+
+    /**
+     * Writes the contents of the given files of a directory or zip file one after the other into a pipe, on the
+     * machine where they are. Exactly the given size of each file is written, or the stream is cut short.
+     */
+    static class BatchWriter implements FilePath.FileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean zipFile;
+        private final List<String> names;
+        private final long[] sizes;
+        private final Pipe pipe;
+
+        BatchWriter(boolean zipFile, List<String> names, long[] sizes, Pipe pipe) {
+            this.zipFile = zipFile;
+            this.names = names;
+            this.sizes = sizes;
+            this.pipe = pipe;
+        }
+
+        public Void invoke(File file, VirtualChannel channel) throws IOException {
+            OutputStream out = pipe.getOut();
+            ZipFile zip = null;
+            try {
+                if (zipFile) {
+                    zip = new ZipFile(file);
+                }
+                byte[] buffer = new byte[8192];
+                for (int i = 0; i < names.size(); i++) {
+                    String name = names.get(i);
+                    InputStream in;
+                    if (zip != null) {
+                        ZipEntry zipEntry = zip.getEntry(name);
+                        if (zipEntry == null) {
+                            throw new FileNotFoundException(name + " in " + file);
+                        }
+                        in = zip.getInputStream(zipEntry);
+                    } else {
+                        in = new FileInputStream(new File(file, name));
+                    }
+                    try {
+                        long remaining = sizes[i];
+                        int read;
+                        while (remaining > 0
+                                && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                            out.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                        if (remaining > 0 || in.read() != -1) {
+                            throw new IOException(name + " in " + file + " changed since its digest was computed");
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                if (zip != null) {
+                    zip.close();
+                }
+                out.close();
+            }
+            return null;
+        }
+    }
+
+    private static MessageDigest newSha1Digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Reads a whole stream into a digest, and returns the number of bytes read.
+     */
+    private static long update(MessageDigest digest, InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            size += read;
+        }
+        return size;
+    }
+}
@@ -6,19 +6,167 @@
 package com.hpe.cloudfoundryjenkins;
 
 import hudson.model.BuildListener;
+import org.apache.commons.io.IOUtils;
 import org.cloudfoundry.client.lib.ApplicationLogListener;
 import org.cloudfoundry.client.lib.domain.ApplicationLog;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the log lines of an app to the build log. The lines are queued in a bounded buffer by the thread that
+ * receives them, and written in batches by a small shared pool of writers, so that a verbose buildpack doesn't stall
+ * the websocket. What happens when the build log can't keep up and the buffer is full is set by the overflow
+ * policy. The number of lines per second can be limited too. Once closed, the remaining lines are written, followed
+ * by the spilled lines and a summary of the lines that were not written, and the lines that still come are dropped.
+ */
 public class JenkinsApplicationLogListener implements ApplicationLogListener {
 
+    /**
+     * What to do with a line when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the writer, like when the lines were written by the receiving thread.
+         */
+        BLOCK,
+        /**
+         * Drop the line, and count it.
+         */
+        DROP,
+        /**
+         * Write the line to a side file instead, which is appended to the build log when the listener is closed.
+         */
+        SPILL
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(JenkinsApplicationLogListener.class.getName());
+
+    private static final String PREFIX = JenkinsApplicationLogListener.class.getName();
+    private static final int BUFFER_SIZE = Integer.getInteger(PREFIX + ".bufferSize", 10000);
+    private static final OverflowPolicy OVERFLOW_POLICY =
+            OverflowPolicy.valueOf(System.getProperty(PREFIX + ".overflowPolicy", OverflowPolicy.BLOCK.name()));
+    private static final int MAX_LINES_PER_SECOND = Integer.getInteger(PREFIX + ".maxLinesPerSecond", 0);
+    private static final int WRITER_THREADS = Integer.getInteger(PREFIX + ".writerThreads", 2);
+    private static final int BATCH_SIZE = 500;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(WRITER_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Cloud Foundry log writer " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     private final BuildListener listener;
+    private final BlockingQueue<String> buffer;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxLinesPerSecond;
+
+    // Only one batch is written at a time, by a writer or by close()
+    private final Object writeLock = new Object();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // Held to queue a line, so that no line is queued once closed
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private final Runnable writer = new Runnable() {
+        public void run() {
+            do {
+                writeBuffer();
+                writing.set(false);
+                // A line may have been queued after the last batch, and before the flag was cleared
+            } while (!buffer.isEmpty() && writing.compareAndSet(false, true));
+        }
+    };
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private long rateWindowStart;
+    private int linesInRateWindow;
+    private File spillFile;
+    private Writer spillWriter;
 
     public JenkinsApplicationLogListener(BuildListener listener) {
+        this(listener, BUFFER_SIZE, OVERFLOW_POLICY, MAX_LINES_PER_SECOND);
+    }
+
+    /**
+     * @param maxLinesPerSecond the number of lines written per second, over which the lines are skipped, or 0
+     *                          for no limit
+     */
+    JenkinsApplicationLogListener(BuildListener listener, int bufferSize, OverflowPolicy overflowPolicy,
+                                  int maxLinesPerSecond) {
         this.listener = listener;
+        this.buffer = new ArrayBlockingQueue<String>(bufferSize);
+        this.overflowPolicy = overflowPolicy;
+        this.maxLinesPerSecond = maxLinesPerSecond;
     }
 
     public void onMessage(ApplicationLog applicationLog) {
-        listener.getLogger().println(applicationLog.getMessage());
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                // The summary was written, the websocket may still be closing
+                dropped.incrementAndGet();
+                return;
+            }
+            queue(applicationLog.getMessage());
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        startWriter();
+    }
+
+    private void queue(String line) {
+        if (!isUnderRateLimit()) {
+            rateLimited.incrementAndGet();
+            return;
+        }
+        if (!buffer.offer(line)) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    try {
+                        startWriter();
+                        buffer.put(line);
+                    } catch (InterruptedException e) {
+                        dropped.incrementAndGet();
+                        Thread.currentThread().interrupt();
+                    }
+                    break;
+                case DROP:
+                    dropped.incrementAndGet();
+                    break;
+                case SPILL:
+                    spill(line);
+                    break;
+            }
+        }
     }
 
     public void onComplete() {
@@ -27,4 +175,115 @@ public class JenkinsApplicationLogListener implements ApplicationLogListener {
     public void onError(Throwable throwable) {
         listener.getLogger().println("ERROR: Could not retrieve staging logs via websocket");
     }
+
+    /**
+     * Writes the lines that are still buffered, and the summary of the lines that were not written.
+     * Can be called more than once.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        writeBuffer();
+
+        PrintStream logger = listener.getLogger();
+        synchronized (this) {
+            if (spillWriter != null) {
+                writeSpilledLines(logger);
+            }
+        }
+        if (rateLimited.get() > 0) {
+            logger.println("WARNING: " + rateLimited.get() + " log lines were skipped, over the limit of "
+                    + maxLinesPerSecond + " lines per second.");
+        }
+        if (dropped.get() > 0) {
+            logger.println("WARNING: " + dropped.get() + " log lines were dropped, the build log could not keep up.");
+        }
+    }
+
+    /**
+     * Appends the lines that were spilled to the build log, and deletes their file.
+     */
+    private void writeSpilledLines(PrintStream logger) {
+        try {
+            spillWriter.close();
+            logger.println("WARNING: The build log could not keep up, " + spilled.get()
+                    + " log lines were held back:");
+            InputStream in = new FileInputStream(spillFile);
+            try {
+                IOUtils.copy(in, logger);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        } catch (IOException e) {
+            logger.println("WARNING: Could not write the " + spilled.get() + " log lines that were held back in "
+                    + spillFile + ": " + e.getMessage());
+        } finally {
+            if (!spillFile.delete()) {
+                LOGGER.log(Level.FINE, "Could not delete " + spillFile);
+            }
+        }
+    }
+
+    /**
+     * The file of the lines that were spilled, or null if none were, for the tests.
+     */
+    synchronized File getSpillFile() {
+        return spillFile;
+    }
+
+    private synchronized boolean isUnderRateLimit() {
+        if (maxLinesPerSecond <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - rateWindowStart >= 1000) {
+            rateWindowStart = now;
+            linesInRateWindow = 0;
+        }
+        return ++linesInRateWindow <= maxLinesPerSecond;
+    }
+
+    private synchronized void spill(String line) {
+        try {
+            if (spillWriter == null) {
+                spillFile = File.createTempFile("cloudfoundry-log-", ".txt");
+                // In case the build is killed before it closes the listener
+                spillFile.deleteOnExit();
+                spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), "UTF-8"));
+            }
+            spillWriter.write(line);
+            spillWriter.write('\n');
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void startWriter() {
+        if (writing.compareAndSet(false, true)) {
+            WRITERS.execute(writer);
+        }
+    }
+
+    private void writeBuffer() {
+        synchronized (writeLock) {
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            while (buffer.drainTo(batch, BATCH_SIZE) > 0) {
+                StringBuilder lines = new StringBuilder();
+                for (String line : batch) {
+                    lines.append(line).append(LINE_SEPARATOR);
+                }
+                listener.getLogger().print(lines);
+                batch.clear();
+            }
+            listener.getLogger().flush();
+        }
+    }
 }
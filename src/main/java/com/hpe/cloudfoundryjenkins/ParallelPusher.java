@@ -0,0 +1,196 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes all the applications of a build, using at most a given number of worker threads.
+ * When more than one worker is used, every line logged by an app is prefixed with its name,
+ * so that the interleaved output of the pushes stays readable.
+ * If an app fails, even with an exception, the other apps are still pushed, but the deployment as a whole is a
+ * failure.
+ */
+public class ParallelPusher {
+
+    private static final Charset LOG_CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * The push of a single application, given the listener it must log to.
+     */
+    public interface AppPush {
+        boolean push(DeploymentInfo deploymentInfo, BuildListener appListener)
+                throws IOException, InterruptedException;
+    }
+
+    private final int workers;
+    private final BuildListener listener;
+
+    public ParallelPusher(int workers, BuildListener listener) {
+        this.workers = workers;
+        this.listener = listener;
+    }
+
+    /**
+     * Pushes every app and prints a summary of the results.
+     * Returns true only if all the apps were pushed successfully.
+     */
+    public boolean pushAll(List<DeploymentInfo> allDeploymentInfo, AppPush appPush)
+            throws IOException, InterruptedException {
+        Map<String, Boolean> results;
+        if (workers <= 1 || allDeploymentInfo.size() <= 1) {
+            results = pushSequentially(allDeploymentInfo, appPush);
+        } else {
+            results = pushInParallel(allDeploymentInfo, appPush);
+        }
+
+        boolean success = true;
+        for (Boolean result : results.values()) {
+            success = success && result;
+        }
+        if (results.size() > 1) {
+            printSummary(results);
+        }
+        return success;
+    }
+
+    private Map<String, Boolean> pushSequentially(List<DeploymentInfo> allDeploymentInfo, AppPush appPush)
+            throws IOException, InterruptedException {
+        Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+        for (DeploymentInfo deploymentInfo : allDeploymentInfo) {
+            // If an app fails, the build status is failure, but we should still try pushing the others
+            boolean success;
+            try {
+                success = appPush.push(deploymentInfo, listener);
+            } catch (IOException e) {
+                printFailure(e, listener.getLogger());
+                success = false;
+            } catch (RuntimeException e) {
+                printFailure(e, listener.getLogger());
+                success = false;
+            }
+            results.put(deploymentInfo.getAppName(), success);
+        }
+        return results;
+    }
+
+    private Map<String, Boolean> pushInParallel(List<DeploymentInfo> allDeploymentInfo, final AppPush appPush)
+            throws InterruptedException {
+        int poolSize = Math.min(workers, allDeploymentInfo.size());
+        listener.getLogger().println("Pushing " + allDeploymentInfo.size() + " apps with " + poolSize + " workers.");
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, new PushThreadFactory());
+
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        List<PrintStream> appLoggers = new ArrayList<PrintStream>();
+        try {
+            for (final DeploymentInfo deploymentInfo : allDeploymentInfo) {
+                final BuildListener appListener = new StreamBuildListener(
+                        new PrefixedOutputStream(listener.getLogger(), "[" + deploymentInfo.getAppName() + "] "),
+                        LOG_CHARSET);
+                appLoggers.add(appListener.getLogger());
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        return appPush.push(deploymentInfo, appListener);
+                    }
+                }));
+            }
+            executor.shutdown();
+
+            Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+            for (int i = 0; i < futures.size(); i++) {
+                String appName = allDeploymentInfo.get(i).getAppName();
+                PrintStream appLogger = appLoggers.get(i);
+                boolean success;
+                try {
+                    success = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    printFailure(e.getCause() == null ? e : e.getCause(), appLogger);
+                    success = false;
+                }
+                appLogger.close();
+                results.put(appName, success);
+            }
+            return results;
+        } finally {
+            // Stops the pushes that are still running if the build was aborted
+            executor.shutdownNow();
+        }
+    }
+
+    private static void printFailure(Throwable failure, PrintStream logger) {
+        logger.println("ERROR: " + failure.getClass().getSimpleName() + ": " + failure.getMessage());
+        failure.printStackTrace(logger);
+    }
+
+    private void printSummary(Map<String, Boolean> results) {
+        listener.getLogger().println("Cloud Foundry push summary:");
+        for (Map.Entry<String, Boolean> result : results.entrySet()) {
+            listener.getLogger().println("  " + result.getKey() + ": " + (result.getValue() ? "success" : "FAILED"));
+        }
+    }
+
+    /**
+     * Writes every line to the build log, preceded by a prefix.
+     * Each line is written atomically, so lines of different apps never get mixed together.
+     */
+    private static class PrefixedOutputStream extends LineTransformationOutputStream {
+
+        private final PrintStream out;
+        private final byte[] prefix;
+
+        PrefixedOutputStream(PrintStream out, String prefix) {
+            this.out = out;
+            this.prefix = prefix.getBytes(LOG_CHARSET);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (out) {
+                out.write(prefix);
+                out.write(b, 0, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Only flush the last line, the build log itself must stay open
+            forceEol();
+            out.flush();
+        }
+    }
+
+    private static class PushThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Cloud Foundry push worker " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
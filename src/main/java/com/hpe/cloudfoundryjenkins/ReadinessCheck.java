@@ -0,0 +1,138 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.domain.InstanceInfo;
+import org.cloudfoundry.client.lib.domain.InstanceState;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks whether a starting app is ready, given the successive states of its instances.
+ * The app is ready when enough of its instances are running, and has failed as soon as one of its instances
+ * crashed or is flapping. The delay between two polls starts short, and grows exponentially with some jitter,
+ * so that fast apps are detected quickly without polling slow apps too often. A wall-clock deadline is enforced,
+ * however long each poll takes.
+ */
+public class ReadinessCheck {
+
+    public enum Status {
+        PENDING, READY, FAILED, TIMED_OUT
+    }
+
+    private static final long INITIAL_DELAY = 250;
+    private static final long MAX_DELAY = 5000;
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final double JITTER = 0.2;
+
+    private static final Random RANDOM = new Random();
+
+    private final String appName;
+    private final int requiredInstances;
+    private final long deadline;
+    private long delay = INITIAL_DELAY;
+
+    private Status status = Status.PENDING;
+    private int running;
+    private int total;
+    private InstanceState failedState;
+    private long stagedNanos;
+
+    /**
+     * @param requiredInstances the number of running instances that is good enough, or 0 to wait for all of them
+     * @param timeoutMillis     the time after which the app is considered not ready
+     */
+    public ReadinessCheck(String appName, int requiredInstances, long timeoutMillis) {
+        this.appName = appName;
+        this.requiredInstances = requiredInstances;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Updates the status with the current instances of the app, which can be null if they are not known yet.
+     */
+    public Status update(InstancesInfo instancesInfo) {
+        if (instancesInfo != null) {
+            // The target only gives the instances of an app once it is staged
+            if (stagedNanos == 0) {
+                stagedNanos = System.nanoTime();
+            }
+            List<InstanceInfo> instances = instancesInfo.getInstances();
+            total = instances.size();
+            running = 0;
+            failedState = null;
+            for (InstanceInfo instance : instances) {
+                InstanceState state = instance.getState();
+                if (state == InstanceState.RUNNING) {
+                    running++;
+                } else if (state == InstanceState.CRASHED || state == InstanceState.FLAPPING) {
+                    failedState = state;
+                }
+            }
+            int required = requiredInstances <= 0 ? total : Math.min(requiredInstances, total);
+            if (total > 0 && running >= required) {
+                status = Status.READY;
+                return status;
+            }
+            if (failedState != null) {
+                status = Status.FAILED;
+                return status;
+            }
+        }
+        if (getRemainingMillis() <= 0) {
+            status = Status.TIMED_OUT;
+        }
+        return status;
+    }
+
+    /**
+     * Returns the time to wait before the next poll, and increases it for the poll after that.
+     * The delay never goes beyond the deadline.
+     */
+    public long nextDelayMillis() {
+        double jitter = 1 + JITTER * (2 * RANDOM.nextDouble() - 1);
+        long next = (long) (delay * jitter);
+        delay = Math.min(MAX_DELAY, (long) (delay * BACKOFF_FACTOR));
+        return Math.max(0, Math.min(next, getRemainingMillis()));
+    }
+
+    public long getRemainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * The System.nanoTime() at which the instances of the app were first known, once it was staged, or 0 if they
+     * never were.
+     */
+    public long getStagedNanos() {
+        return stagedNanos;
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * The state of a failed instance, CRASHED or FLAPPING, if the status is FAILED.
+     */
+    public InstanceState getFailedState() {
+        return failedState;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls the instances of all the apps that are starting, for all the builds, with a small shared pool of threads.
+ * Build threads register their started apps and wait on a future, instead of each running its own polling loop.
+ * Each app is polled according to its own ReadinessCheck, and its future completes when the app is ready, has
+ * failed, or has timed out.
+ * <p>
+ * Each app is polled on its own, with getApplicationInstances. The calls that list the apps of a space at once, like
+ * getApplications or the summary of the space, only give the number of running instances of each app, not the states
+ * of the instances: an app with a crashed or flapping instance could not be failed at once, and would be waited for
+ * until the timeout. The polls are spread out by the backoff of each app instead.
+ * <p>
+ * The threads don't wait for the retries of the {@link CloudControllerThrottle}, which would hold up the polls of
+ * every build: a poll that the target could not answer is made again at the next tick.
+ */
+public final class ReadinessScheduler {
+
+    private static final int POLL_THREADS = Integer.getInteger(ReadinessScheduler.class.getName() + ".pollThreads", 4);
+    private static final int MAX_POLL_FAILURES =
+            Integer.getInteger(ReadinessScheduler.class.getName() + ".maxPollFailures", 5);
+
+    private static final ReadinessScheduler INSTANCE = new ReadinessScheduler();
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(POLL_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            CloudControllerThrottle.disableRetries();
+                            r.run();
+                        }
+                    }, "Cloud Foundry readiness poller " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private ReadinessScheduler() {
+    }
+
+    public static ReadinessScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts polling an app. The returned future gives the check once its status is no longer PENDING,
+     * or fails with the exception thrown by the target. Cancelling the future stops the polling.
+     */
+    public ListenableFuture<ReadinessCheck> register(CloudFoundryClient client, CloudApplication app,
+                                                     ReadinessCheck check) {
+        SettableFuture<ReadinessCheck> future = SettableFuture.create();
+        executor.execute(new Poll(client, app, check, future));
+        return future;
+    }
+
+    private class Poll implements Runnable {
+
+        private final CloudFoundryClient client;
+        private final CloudApplication app;
+        private final ReadinessCheck check;
+        private final SettableFuture<ReadinessCheck> future;
+        // The polls in a row that the target could not answer
+        private int failures;
+
+        Poll(CloudFoundryClient client, CloudApplication app, ReadinessCheck check,
+             SettableFuture<ReadinessCheck> future) {
+            this.client = client;
+            this.app = app;
+            this.check = check;
+            this.future = future;
+        }
+
+        public void run() {
+            if (future.isCancelled()) {
+                // The build was aborted
+                return;
+            }
+            try {
+                InstancesInfo instances;
+                try {
+                    instances = client.getApplicationInstances(app);
+                    failures = 0;
+                } catch (RuntimeException e) {
+                    if (!CloudControllerThrottle.isRetryable(e) || ++failures >= MAX_POLL_FAILURES) {
+                        throw e;
+                    }
+                    executor.schedule(this, check.nextDelayMillis(), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (check.update(instances) == ReadinessCheck.Status.PENDING) {
+                    executor.schedule(this, check.nextDelayMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    future.set(check);
+                }
+            } catch (RuntimeException e) {
+                future.setException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.Service;
+import hudson.model.BuildListener;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.domain.CloudService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates and resets the services of a build in the background, a few at a time, while the apps are prepared.
+ * Each app only waits for the services it binds, so an app that binds none of the slow services can be pushed right
+ * away, and the build waits for all of them before it ends.
+ * <p>
+ * The version of the CF client that is used doesn't give the last operation of a service, so a service is ready as
+ * soon as the target created it: the brokers that provision their services asynchronously may still be at work when
+ * the apps bind them.
+ */
+public class ServiceProvisioner {
+
+    private static final int CONCURRENCY = Integer.getInteger(ServiceProvisioner.class.getName() + ".concurrency", 4);
+
+    private final CloudFoundryClient client;
+    private final String spaceKey;
+    private final BuildListener listener;
+    private final long timeoutMillis;
+    private final Map<String, Future<Boolean>> services = new HashMap<String, Future<Boolean>>();
+    private ExecutorService executor;
+
+    public ServiceProvisioner(CloudFoundryClient client, String spaceKey, BuildListener listener,
+                              long timeoutMillis) {
+        this.client = client;
+        this.spaceKey = spaceKey;
+        this.listener = listener;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts creating the services that don't exist, and resetting the ones that must be. Returns immediately.
+     */
+    public synchronized void start(List<Service> servicesToCreate) throws InterruptedException {
+        if (servicesToCreate.isEmpty()) {
+            return;
+        }
+        List<String> currentServicesNames = new ArrayList<String>();
+        for (CloudService currentService : SpaceMetadataCache.getInstance().getServices(client, spaceKey)) {
+            currentServicesNames.add(currentService.getName());
+        }
+
+        executor = Executors.newFixedThreadPool(Math.min(CONCURRENCY, servicesToCreate.size()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Cloud Foundry service provisioner " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (Service service : servicesToCreate) {
+            boolean exists = currentServicesNames.contains(service.name);
+            if (exists && !service.resetService) {
+                listener.getLogger().println("Service " + service.name + " already exists, skipping creation.");
+                continue;
+            }
+            services.put(service.name, executor.submit(new Provisioning(service, exists)));
+        }
+    }
+
+    /**
+     * Waits until the given services are ready. The services that this provisioner does not create are ignored.
+     * Returns false if one of them could not be created.
+     */
+    public boolean awaitServices(Collection<String> serviceNames) throws InterruptedException {
+        boolean ready = true;
+        for (String serviceName : serviceNames) {
+            Future<Boolean> future;
+            synchronized (this) {
+                future = services.get(serviceName);
+            }
+            if (future == null) {
+                continue;
+            }
+            try {
+                ready = future.get() && ready;
+            } catch (ExecutionException e) {
+                // Already logged by the provisioning
+                ready = false;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Waits until all the services are ready, including the ones that no app binds.
+     * Returns false if one of them could not be created.
+     */
+    public boolean awaitAll() throws InterruptedException {
+        List<String> serviceNames;
+        synchronized (this) {
+            serviceNames = new ArrayList<String>(services.keySet());
+        }
+        return awaitServices(serviceNames);
+    }
+
+    /**
+     * Stops the provisioning threads, once all the apps were pushed. The services that are still being created, if
+     * the build failed before it waited for them, are given until the timeout to finish, so that they are not left
+     * half created.
+     */
+    public void shutdown() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+        }
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                listener.getLogger().println("WARNING: Some services were still being created after "
+                        + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis) + " seconds.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Provisioning implements Callable<Boolean> {
+
+        private final Service service;
+        private final boolean exists;
+
+        Provisioning(Service service, boolean exists) {
+            this.service = service;
+            this.exists = exists;
+        }
+
+        public Boolean call() {
+            try {
+                if (exists) {
+                    listener.getLogger().println("Service " + service.name + " already exists, resetting.");
+                    client.deleteService(service.name);
+                    SpaceMetadataCache.getInstance().invalidateServices(spaceKey);
+                    listener.getLogger().println("Service " + service.name + " deleted.");
+                }
+                listener.getLogger().println("Creating service " + service.name);
+                CloudService cloudService = new CloudService();
+                cloudService.setName(service.name);
+                cloudService.setLabel(service.type);
+                cloudService.setPlan(service.plan);
+                client.createService(cloudService);
+                SpaceMetadataCache.getInstance().invalidateServices(spaceKey);
+                listener.getLogger().println("Service " + service.name + " created.");
+                return true;
+            } catch (RuntimeException e) {
+                listener.getLogger().println("ERROR: Could not create service " + service.name + ": "
+                        + e.getMessage());
+                e.printStackTrace(listener.getLogger());
+                return false;
+            }
+        }
+    }
+}
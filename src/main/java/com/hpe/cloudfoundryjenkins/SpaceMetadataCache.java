@@ -0,0 +1,164 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.domain.CloudStack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches, for a short time, the metadata of the spaces that the builds read before every push: the default domain,
+ * the services and the stacks. When many builds deploy to the same space at the same time, only one of them reads
+ * each item from the target, and the others wait for its result instead of making the same request.
+ * The services of a space are invalidated when the plugin creates or deletes one of them. The items are cached for
+ * each user of the space, since users may not be allowed to see the same services.
+ */
+public final class SpaceMetadataCache {
+
+    private static final long TTL = Long.getLong(SpaceMetadataCache.class.getName() + ".ttl",
+            TimeUnit.SECONDS.toMillis(30));
+
+    private static final SpaceMetadataCache INSTANCE = new SpaceMetadataCache();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private SpaceMetadataCache() {
+    }
+
+    public static SpaceMetadataCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the key of a space as seen by the user of a client of the {@link ClientSessionPool}, which prefixes the
+     * keys of all its items.
+     */
+    public static String spaceKey(CloudFoundryClient client, String target, String organization, String cloudSpace) {
+        return target + "|" + organization + "|" + cloudSpace + "|"
+                + ClientSessionPool.getInstance().getCredentialsDigest(client) + "|";
+    }
+
+    public CloudDomain getDefaultDomain(final CloudFoundryClient client, String spaceKey)
+            throws InterruptedException {
+        return get(spaceKey + "domain", new Callable<CloudDomain>() {
+            public CloudDomain call() {
+                return client.getDefaultDomain();
+            }
+        });
+    }
+
+    public List<CloudService> getServices(final CloudFoundryClient client, String spaceKey)
+            throws InterruptedException {
+        return get(spaceKey + "services", new Callable<List<CloudService>>() {
+            public List<CloudService> call() {
+                return Collections.unmodifiableList(new ArrayList<CloudService>(client.getServices()));
+            }
+        });
+    }
+
+    /**
+     * Returns the stack with the given name, or null if the target has none. A missing stack is cached too.
+     */
+    public CloudStack getStack(final CloudFoundryClient client, String spaceKey, final String stackName)
+            throws InterruptedException {
+        return get(spaceKey + "stack|" + stackName, new Callable<CloudStack>() {
+            public CloudStack call() {
+                return client.getStack(stackName);
+            }
+        });
+    }
+
+    /**
+     * Must be called after a service of the space was created or deleted. The services are dropped for all the users
+     * of the space.
+     */
+    public void invalidateServices(String spaceKey) {
+        // The key of the space without the credentials digest
+        String spacePrefix = spaceKey.substring(0, spaceKey.lastIndexOf('|', spaceKey.length() - 2) + 1);
+        for (String key : entries.keySet()) {
+            if (key.startsWith(spacePrefix) && key.endsWith("|services")) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Drops everything, for the tests.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns an item, loading it if needed. If the thread is interrupted while it waits for another thread to load
+     * the item, like when its build is aborted, it stops waiting and keeps its interrupt flag.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, Callable<T> loader) throws InterruptedException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.isExpired()) {
+                return (T) entry.get();
+            }
+
+            // Only the thread that installs the new entry loads it, the others wait for its result
+            Entry newEntry = new Entry(new FutureTask<Object>((Callable<Object>) loader));
+            boolean installed = entry == null
+                    ? entries.putIfAbsent(key, newEntry) == null
+                    : entries.replace(key, entry, newEntry);
+            if (installed) {
+                newEntry.task.run();
+                newEntry.loadedAt = System.currentTimeMillis();
+                try {
+                    return (T) newEntry.get();
+                } catch (RuntimeException e) {
+                    // Failures are not cached
+                    entries.remove(key, newEntry);
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final FutureTask<Object> task;
+        private volatile long loadedAt;
+
+        Entry(FutureTask<Object> task) {
+            this.task = task;
+        }
+
+        boolean isExpired() {
+            // An entry that is still loading is never expired
+            return loadedAt != 0 && System.currentTimeMillis() - loadedAt > TTL;
+        }
+
+        Object get() throws InterruptedException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
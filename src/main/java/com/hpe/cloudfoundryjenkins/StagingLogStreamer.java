@@ -0,0 +1,210 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.BuildListener;
+import org.cloudfoundry.client.lib.ApplicationLogListener;
+import org.cloudfoundry.client.lib.CloudFoundryClient;
+import org.cloudfoundry.client.lib.StartingInfo;
+import org.cloudfoundry.client.lib.StreamingLogToken;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the staging logs of the apps of all the builds to their build logs, and closes every stream once the app
+ * it belongs to is started, has failed, or the build is aborted.
+ * The number of streams that are open at the same time is capped, so that many concurrent deployments don't pile
+ * up websockets: the apps that are staged over the cap are deployed without their staging logs. When the websocket
+ * cannot be opened, the logs are tailed instead by a small shared pool of threads, with a delay that grows while
+ * there is nothing new.
+ */
+public final class StagingLogStreamer {
+
+    private static final int MAX_STREAMS = Integer.getInteger(StagingLogStreamer.class.getName() + ".maxStreams", 32);
+    private static final int TAIL_THREADS = Integer.getInteger(StagingLogStreamer.class.getName() + ".tailThreads", 2);
+    private static final long INITIAL_DELAY = 500;
+    private static final long MAX_DELAY = 5000;
+
+    private static final StagingLogStreamer INSTANCE = new StagingLogStreamer();
+
+    private final Semaphore streams = new Semaphore(MAX_STREAMS);
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(TAIL_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Cloud Foundry staging log tailer " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private StagingLogStreamer() {
+    }
+
+    public static StagingLogStreamer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts streaming the staging logs of an app to the build log. The returned stream must be closed, which
+     * can be done more than once.
+     */
+    public Stream open(CloudFoundryClient client, String appName, StartingInfo startingInfo,
+                       BuildListener listener) {
+        if (!streams.tryAcquire()) {
+            listener.getLogger().println("WARNING: Too many staging logs are being streamed, " +
+                    "the staging logs of " + appName + " will not be displayed.");
+            return new Stream(null, null);
+        }
+        Stream stream = new Stream(client, listener);
+        stream.start(appName, startingInfo);
+        return stream;
+    }
+
+    /**
+     * The staging logs of one app.
+     */
+    public class Stream implements ApplicationLogListener {
+
+        private final CloudFoundryClient client;
+        private final JenkinsApplicationLogListener logListener;
+        private final BuildListener listener;
+        private boolean closed;
+        private StreamingLogToken token;
+        private ScheduledFuture<?> tail;
+
+        private Stream(CloudFoundryClient client, BuildListener listener) {
+            this.client = client;
+            this.listener = listener;
+            this.logListener = listener == null ? null : new JenkinsApplicationLogListener(listener);
+            // A stream over the cap holds no permit
+            this.closed = client == null;
+        }
+
+        private void start(String appName, StartingInfo startingInfo) {
+            // First, try streamLogs()
+            try {
+                StreamingLogToken token = client.streamLogs(appName, this);
+                synchronized (this) {
+                    if (!closed) {
+                        this.token = token;
+                        return;
+                    }
+                }
+                // Completed before it was returned
+                if (token != null) {
+                    token.cancel();
+                }
+            } catch (Exception e) {
+                // In case of failure, try getStagingLogs()
+                listener.getLogger().println("WARNING: Exception occurred trying to get staging logs via websocket. " +
+                        "Switching to alternate method.");
+                synchronized (this) {
+                    if (!closed) {
+                        tail = executor.schedule(new Tail(startingInfo), 0, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+
+        public void onMessage(ApplicationLog applicationLog) {
+            logListener.onMessage(applicationLog);
+        }
+
+        public void onComplete() {
+            logListener.onComplete();
+            close();
+        }
+
+        public void onError(Throwable throwable) {
+            logListener.onError(throwable);
+            close();
+        }
+
+        /**
+         * Stops streaming the logs, and frees the stream for other apps.
+         */
+        public void close() {
+            StreamingLogToken token;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                token = this.token;
+                if (tail != null) {
+                    tail.cancel(false);
+                }
+            }
+            try {
+                if (token != null) {
+                    token.cancel();
+                }
+            } finally {
+                streams.release();
+                // Writes the lines that are still buffered
+                logListener.close();
+            }
+        }
+
+        /**
+         * Tails the staging logs by offset, rescheduling itself until they are complete.
+         */
+        private class Tail implements Runnable {
+
+            private final StartingInfo startingInfo;
+            private int offset;
+            private long delay = INITIAL_DELAY;
+            private boolean received;
+
+            Tail(StartingInfo startingInfo) {
+                this.startingInfo = startingInfo;
+            }
+
+            public void run() {
+                synchronized (Stream.this) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                String stagingLogs;
+                try {
+                    stagingLogs = client.getStagingLogs(startingInfo, offset);
+                } catch (RuntimeException e) {
+                    stagingLogs = null;
+                }
+                if (stagingLogs == null) {
+                    if (!received) {
+                        listener.getLogger().println("WARNING: Could not get staging logs with alternate method. " +
+                                "Cannot display staging logs.");
+                    }
+                    close();
+                    return;
+                }
+                if (stagingLogs.isEmpty()) {
+                    delay = Math.min(MAX_DELAY, delay * 3 / 2);
+                } else {
+                    received = true;
+                    listener.getLogger().println(stagingLogs);
+                    offset += stagingLogs.length();
+                    delay = INITIAL_DELAY;
+                }
+                synchronized (Stream.this) {
+                    if (!closed) {
+                        tail = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppChangesTest {
+
+    @Test
+    public void testUnchangedApp() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("ENV_VAR_ONE", "value1");
+        CloudApplication app = app(2, 512, Arrays.asList("hello-java.example.com"), Arrays.asList("mysql"));
+
+        AppChanges changes = AppChanges.compute(app, env, deploymentInfo(2, 512, env, Arrays.asList("mysql"), false));
+
+        assertTrue("Unchanged app has changes: " + changes, changes.isEmpty());
+        assertEquals("none", changes.toString());
+    }
+
+    @Test
+    public void testChangedSettings() throws Exception {
+        Map<String, String> currentEnv = new HashMap<String, String>();
+        currentEnv.put("ENV_VAR_ONE", "value1");
+        currentEnv.put("ENV_VAR_TWO", "value2");
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("ENV_VAR_ONE", "value1");
+        env.put("ENV_VAR_TWO", "changed");
+        CloudApplication app = app(1, 512, new ArrayList<String>(), new ArrayList<String>());
+
+        AppChanges changes = AppChanges.compute(app, currentEnv,
+                deploymentInfo(3, 1024, env, Arrays.asList("mysql"), false));
+
+        assertTrue(changes.isInstancesChanged());
+        assertTrue(changes.isMemoryChanged());
+        assertTrue(changes.isEnvChanged());
+        assertTrue(changes.isRoutesChanged());
+        assertTrue(changes.isServicesChanged());
+        assertEquals("instances 1 -> 3, memory 512M -> 1024M, env ~ENV_VAR_TWO, route +hello-java.example.com, "
+                + "service +mysql", changes.toString());
+    }
+
+    @Test
+    public void testDefaultInstancesAndMemoryKept() throws Exception {
+        CloudApplication app = app(3, 1024, Arrays.asList("hello-java.example.com"), new ArrayList<String>());
+        Map<String, Object> appInfo = new HashMap<String, Object>();
+        appInfo.put("name", "hello-java");
+
+        AppChanges changes = AppChanges.compute(app, null,
+                new DeploymentInfo(System.out, appInfo, "jenkins-build-name", "example.com", ""));
+
+        assertFalse("App scaled by hand was scaled back", changes.isInstancesChanged());
+        assertFalse("App resized by hand was resized back", changes.isMemoryChanged());
+        assertEquals(AppChanges.Action.NONE, changes.getAction(false));
+    }
+
+    @Test
+    public void testRouteWithScheme() throws Exception {
+        CloudApplication app = app(1, 512, Arrays.asList("https://hello-java.example.com"), new ArrayList<String>());
+
+        AppChanges changes = AppChanges.compute(app, null,
+                deploymentInfo(1, 512, new HashMap<String, String>(), new ArrayList<String>(), false));
+
+        assertFalse(changes.isRoutesChanged());
+    }
+
+    @Test
+    public void testNoRoute() throws Exception {
+        CloudApplication app = app(1, 512, Arrays.asList("hello-java.example.com"), new ArrayList<String>());
+
+        AppChanges changes = AppChanges.compute(app, null,
+                deploymentInfo(1, 512, new HashMap<String, String>(), new ArrayList<String>(), true));
+
+        assertTrue(changes.isRoutesChanged());
+        assertEquals("routes -[hello-java.example.com]", changes.toString());
+    }
+
+    @Test
+    public void testNewApp() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("ENV_VAR_ONE", "value1");
+
+        AppChanges changes = AppChanges.computeForNewApp(
+                deploymentInfo(1, 512, env, Arrays.asList("mysql"), false));
+
+        assertFalse("Created app must not be scaled", changes.isInstancesChanged());
+        assertFalse("Created app must not be resized", changes.isMemoryChanged());
+        assertFalse("Routes are set on creation", changes.isRoutesChanged());
+        assertFalse("Services are bound on creation", changes.isServicesChanged());
+        assertTrue("Env vars are not set on creation", changes.isEnvChanged());
+    }
+
+    @Test
+    public void testActions() throws Exception {
+        Map<String, String> env = new HashMap<String, String>();
+        List<String> uris = Arrays.asList("hello-java.example.com");
+        List<String> services = new ArrayList<String>();
+        CloudApplication app = app(1, 512, uris, services);
+
+        AppChanges unchanged = AppChanges.compute(app, env, deploymentInfo(1, 512, env, services, false));
+        assertEquals(AppChanges.Action.NONE, unchanged.getAction(false));
+        assertEquals(AppChanges.Action.PUSH, unchanged.getAction(true));
+
+        AppChanges scaled = AppChanges.compute(app, env, deploymentInfo(3, 512, env, services, false));
+        assertEquals(AppChanges.Action.SCALE, scaled.getAction(false));
+
+        AppChanges resized = AppChanges.compute(app, env, deploymentInfo(3, 1024, env, services, false));
+        assertEquals(AppChanges.Action.RESTART, resized.getAction(false));
+
+        AppChanges bound = AppChanges.compute(app, env, deploymentInfo(1, 512, env, Arrays.asList("mysql"), false));
+        assertEquals(AppChanges.Action.RESTAGE, bound.getAction(false));
+
+        AppChanges newApp = AppChanges.computeForNewApp(deploymentInfo(1, 512, env, services, false));
+        assertEquals(AppChanges.Action.PUSH, newApp.getAction(false));
+    }
+
+    @Test
+    public void testStoppedAppIsRestarted() throws Exception {
+        CloudApplication app = new CloudApplication("hello-java", null, null, 512, 1,
+                Arrays.asList("hello-java.example.com"), new ArrayList<String>(), CloudApplication.AppState.STOPPED);
+
+        AppChanges changes = AppChanges.compute(app, null,
+                deploymentInfo(1, 512, new HashMap<String, String>(), new ArrayList<String>(), false));
+
+        assertEquals(AppChanges.Action.RESTART, changes.getAction(false));
+    }
+
+    private static CloudApplication app(int instances, int memory, List<String> uris, List<String> services) {
+        return new CloudApplication("hello-java", null, null, memory, instances, uris, services,
+                CloudApplication.AppState.STARTED);
+    }
+
+    private static DeploymentInfo deploymentInfo(int instances, int memory, Map<String, String> env,
+                                                 List<String> services, boolean noRoute) throws Exception {
+        Map<String, Object> appInfo = new HashMap<String, Object>();
+        appInfo.put("name", "hello-java");
+        appInfo.put("instances", instances);
+        appInfo.put("memory", memory);
+        appInfo.put("env", env);
+        appInfo.put("services", services);
+        appInfo.put("no-route", noRoute);
+        return new DeploymentInfo(System.out, appInfo, "jenkins-build-name", "example.com", "");
+    }
+}
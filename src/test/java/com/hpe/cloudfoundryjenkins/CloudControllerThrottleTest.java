@@ -0,0 +1,231 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpHeaders;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.web.client.HttpClientErrorException;
+import org.cloudfoundry.client.lib.rest.CloudControllerClient;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CloudControllerThrottleTest {
+
+    /**
+     * A client that fails with the given statuses, one per call, and then succeeds.
+     */
+    private static class FailingClient implements InvocationHandler {
+
+        private final LinkedList<Integer> failures = new LinkedList<Integer>();
+        private int calls;
+
+        FailingClient(Integer... statuses) {
+            Collections.addAll(failures, statuses);
+        }
+
+        CloudControllerClient newClient() {
+            return (CloudControllerClient) Proxy.newProxyInstance(CloudControllerClient.class.getClassLoader(),
+                    new Class<?>[]{CloudControllerClient.class}, this);
+        }
+
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls++;
+            if (!failures.isEmpty()) {
+                throw new CloudFoundryException(HttpStatus.valueOf(failures.removeFirst()));
+            }
+            return method.getName().equals("getApplications")
+                    ? Collections.<CloudApplication>emptyList() : null;
+        }
+    }
+
+    private static CloudControllerThrottle newThrottle(int failureThreshold) {
+        return new CloudControllerThrottle("https://api.example.com", 1000, 10, 3, 10, 100, failureThreshold,
+                60000);
+    }
+
+    @Test
+    public void testReadsRetried() throws Exception {
+        FailingClient failing = new FailingClient(503, 429, 502);
+        List<CloudApplication> apps = newThrottle(10).wrap(failing.newClient()).getApplications();
+        assertTrue(apps.isEmpty());
+        assertEquals(4, failing.calls);
+    }
+
+    @Test
+    public void testWritesNotRetriedOnServerErrors() throws Exception {
+        FailingClient failing = new FailingClient(503);
+        try {
+            newThrottle(10).wrap(failing.newClient()).startApplication("hello");
+            fail("The 503 error should not have been retried");
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        }
+        assertEquals(1, failing.calls);
+
+        // Rate limited calls were not done by the target
+        failing = new FailingClient(429);
+        newThrottle(10).wrap(failing.newClient()).startApplication("hello");
+        assertEquals(2, failing.calls);
+    }
+
+    @Test
+    public void testClientErrorsNotRetried() throws Exception {
+        FailingClient failing = new FailingClient(404);
+        try {
+            newThrottle(10).wrap(failing.newClient()).getApplications();
+            fail("The 404 error should not have been retried");
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+        }
+        assertEquals(1, failing.calls);
+    }
+
+    @Test
+    public void testLongReadsNotRetriedOnServerErrors() throws Exception {
+        FailingClient failing = new FailingClient(503);
+        try {
+            newThrottle(10).wrap(failing.newClient()).getStagingLogs(null, 0);
+            fail("The 503 error should not have been retried");
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        }
+        assertEquals(1, failing.calls);
+    }
+
+    @Test
+    public void testRetryAfterHonored() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Retry-After", "1");
+        final HttpClientErrorException rateLimited = new HttpClientErrorException(HttpStatus.valueOf(429),
+                "Too Many Requests", headers, new byte[0], null);
+        final AtomicInteger calls = new AtomicInteger();
+        // The backoff would be 10 ms without the header
+        CloudControllerThrottle throttle = new CloudControllerThrottle("https://api.example.com", 1000, 10, 3, 10,
+                5000, 10, 60000);
+        long start = System.nanoTime();
+        String result = throttle.call("getJob", true, new Callable<String>() {
+            public String call() {
+                if (calls.incrementAndGet() == 1) {
+                    throw rateLimited;
+                }
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+        assertEquals(2, calls.get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 1000);
+    }
+
+    @Test
+    public void testNoRetriesOnPollingThreads() throws Exception {
+        final FailingClient failing = new FailingClient(503, 503);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        Thread poller = new Thread() {
+            @Override
+            public void run() {
+                CloudControllerThrottle.disableRetries();
+                try {
+                    newThrottle(10).wrap(failing.newClient()).getApplications();
+                } catch (RuntimeException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        poller.start();
+        poller.join();
+        assertTrue(CloudControllerThrottle.isRetryable(failure.get()));
+        assertEquals(1, failing.calls);
+    }
+
+    @Test
+    public void testCircuitOpens() throws Exception {
+        CloudControllerThrottle throttle = newThrottle(2);
+        FailingClient failing = new FailingClient(500, 500, 500, 500, 500, 500);
+        CloudControllerClient client = throttle.wrap(failing.newClient());
+        try {
+            client.getApplications();
+            fail("The circuit should have been opened");
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+            assertTrue(e.getDescription().contains("suspended"));
+        }
+        assertEquals(2, failing.calls);
+
+        // The other clients of the target fail at once
+        FailingClient other = new FailingClient();
+        try {
+            throttle.wrap(other.newClient()).getApplications();
+            fail("The circuit should be open");
+        } catch (CloudFoundryException e) {
+            assertEquals(0, other.calls);
+        }
+    }
+
+    @Test
+    public void testSingleTrialCallWhenHalfOpen() throws Exception {
+        final CloudControllerThrottle throttle = new CloudControllerThrottle("https://api.example.com", 1000, 10, 0,
+                10, 100, 2, 50);
+        FailingClient failing = new FailingClient(500, 500);
+        CloudControllerClient client = throttle.wrap(failing.newClient());
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.getApplications();
+                fail("The call should have failed");
+            } catch (CloudFoundryException expected) {
+            }
+        }
+        Thread.sleep(100);
+
+        // The trial call is held by the target, the other calls fail at once meanwhile
+        final CountDownLatch trialStarted = new CountDownLatch(1);
+        final CountDownLatch trialDone = new CountDownLatch(1);
+        Future<Object> trial = Executors.newSingleThreadExecutor().submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                return throttle.call("trial", false, new Callable<Object>() {
+                    public Object call() throws Exception {
+                        trialStarted.countDown();
+                        trialDone.await();
+                        return "up";
+                    }
+                });
+            }
+        });
+        trialStarted.await();
+        FailingClient other = new FailingClient();
+        try {
+            throttle.wrap(other.newClient()).getApplications();
+            fail("Only the trial call should go through");
+        } catch (CloudFoundryException e) {
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+            assertTrue(e.getDescription().contains("trial call"));
+        }
+        assertEquals(0, other.calls);
+
+        // The circuit is closed once the trial call succeeded
+        trialDone.countDown();
+        assertEquals("up", trial.get());
+        throttle.wrap(other.newClient()).getApplications();
+        assertEquals(1, other.calls);
+    }
+}
@@ -95,7 +95,8 @@ public class CloudFoundryPushPublisherTest {
         project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
 
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -106,8 +107,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -126,7 +127,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifest);
+                "testCredentialsId", false, false, 0, null, manifest, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -137,8 +138,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -158,7 +159,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf1 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, true, 0, null, manifest1);
+                "testCredentialsId", false, true, 0, null, manifest1, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf1);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " 1 completed");
@@ -177,7 +178,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf2 = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, true, 0, null, manifest2);
+                "testCredentialsId", false, true, 0, null, manifest2, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf2);
         build = project.scheduleBuild2(0).get();
 
@@ -198,7 +199,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifest);
+                "testCredentialsId", false, false, 0, null, manifest, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -210,8 +211,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
         assertTrue("Not the correct amount of instances", log.contains("4 instances running out of 4"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -230,7 +231,7 @@ public class CloudFoundryPushPublisherTest {
                         "https://github.com/heroku/heroku-buildpack-nodejs", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifest);
+                "testCredentialsId", false, false, 0, null, manifest, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -241,8 +242,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloading and installing node"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -257,7 +258,8 @@ public class CloudFoundryPushPublisherTest {
         FreeStyleProject project = j.createFreeStyleProject();
         project.setScm(new ExtractResourceSCM(getClass().getResource("multi-hello-java.zip")));
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -268,7 +270,7 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        List<String> appUris = cf.getAppURIs();
+        List<String> appUris = build.getAction(DeploymentResultAction.class).getAppURIs();
         System.out.println("App URIs : " + appUris);
 
         String uri1 = appUris.get(0);
@@ -291,6 +293,28 @@ public class CloudFoundryPushPublisherTest {
         assertEquals(300, client.getApplication("hello-java-2").getMemory());
     }
 
+    @Test
+    public void testPerformMultiAppManifestParallel() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("multi-hello-java.zip")));
+        CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
+                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 2, false, 0,
+                false, false, false);
+        project.getPublishersList().add(cf);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        System.out.println(build.getDisplayName() + " completed");
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        System.out.println(log);
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertTrue("Build did not prefix the app logs", log.contains("[hello-java-1] "));
+        assertTrue("Build did not prefix the app logs", log.contains("[hello-java-2] "));
+        assertTrue("Build did not display a summary", log.contains("Cloud Foundry push summary:"));
+        assertEquals(200, client.getApplication("hello-java-1").getMemory());
+        assertEquals(300, client.getApplication("hello-java-2").getMemory());
+    }
+
     @Test
     public void testPerformCustomManifestFileLocation() throws Exception {
         FreeStyleProject project = j.createFreeStyleProject();
@@ -299,7 +323,7 @@ public class CloudFoundryPushPublisherTest {
         ManifestChoice manifestChoice = new ManifestChoice("manifestFile", "manifest/manifest.yml",
                 null, 0, null, 0, 0, false, null, null, null, null, null, null, null);
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifestChoice);
+                "testCredentialsId", false, false, 0, null, manifestChoice, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -310,8 +334,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -334,7 +358,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifest);
+                "testCredentialsId", false, false, 0, null, manifest, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -353,7 +377,8 @@ public class CloudFoundryPushPublisherTest {
         FreeStyleProject project = j.createFreeStyleProject();
         project.setScm(new ExtractResourceSCM(getClass().getResource("python-env.zip")));
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -364,8 +389,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -394,7 +419,8 @@ public class CloudFoundryPushPublisherTest {
         FreeStyleProject project = j.createFreeStyleProject();
         project.setScm(new ExtractResourceSCM(getClass().getResource("python-env-services.zip")));
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -405,8 +431,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -427,7 +453,8 @@ public class CloudFoundryPushPublisherTest {
         serviceList.add(mysqlService);
 
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, serviceList, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, serviceList, ManifestChoice.defaultManifestFileConfig(), 0,
+                false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -438,8 +465,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -467,7 +494,8 @@ public class CloudFoundryPushPublisherTest {
         serviceList.add(mysqlService);
 
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, serviceList, ManifestChoice.defaultManifestFileConfig());
+                "testCredentialsId", false, false, 0, serviceList, ManifestChoice.defaultManifestFileConfig(), 0,
+                false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -478,8 +506,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -499,7 +527,7 @@ public class CloudFoundryPushPublisherTest {
                         "target/hello-java-1.0.war", "", "", "", "",
                         new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "testCredentialsId", false, false, 0, null, manifest);
+                "testCredentialsId", false, false, 0, null, manifest, 0, false, 0, false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -510,8 +538,8 @@ public class CloudFoundryPushPublisherTest {
         assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
         assertTrue("Build did not display staging logs", log.contains("Downloaded app package"));
 
-        System.out.println("App URI : " + cf.getAppURIs().get(0));
-        String uri = cf.getAppURIs().get(0);
+        System.out.println("App URI : " + build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+        String uri = build.getAction(DeploymentResultAction.class).getAppURIs().get(0);
         Request request = Request.Get(uri);
         HttpResponse response = request.execute().returnResponse();
         int statusCode = response.getStatusLine().getStatusCode();
@@ -523,7 +551,8 @@ public class CloudFoundryPushPublisherTest {
         FreeStyleProject project = j.createFreeStyleProject();
         project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher("https://does-not-exist.local",
-                TEST_ORG, TEST_SPACE, "testCredentialsId", false, false, 0, null, null);
+                TEST_ORG, TEST_SPACE, "testCredentialsId", false, false, 0, null, null, 0, false, 0, false, false,
+                false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -545,7 +574,8 @@ public class CloudFoundryPushPublisherTest {
                 new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "wrongCredentialsId", "",
                         "wrongName", "wrongPass"));
         CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(TEST_TARGET, TEST_ORG, TEST_SPACE,
-                "wrongCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig());
+                "wrongCredentialsId", false, false, 0, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, false, false);
         project.getPublishersList().add(cf);
         FreeStyleBuild build = project.scheduleBuild2(0).get();
         System.out.println(build.getDisplayName() + " completed");
@@ -0,0 +1,124 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.ExtractResourceSCM;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Load driver: runs many concurrent Jenkins jobs that push to the fake Cloud Controller, and reports the deploy
+ * throughput and latency. It is skipped unless the number of concurrent jobs is given, for instance:
+ * <pre>
+ * mvn test -Dtest=DeployLoadTest -DloadTest.jobs=20 -DloadTest.rounds=5 -DloadTest.latency=50
+ * </pre>
+ * The latency of the fake target (ms per call), the start-up delay of the apps (ms) and the rate of failed calls can
+ * be set with loadTest.latency, loadTest.startupDelay and loadTest.failureRate.
+ */
+public class DeployLoadTest {
+
+    private static final String JOBS = System.getProperty("loadTest.jobs");
+    private static final int ROUNDS = Integer.getInteger("loadTest.rounds", 3);
+    private static final long LATENCY = Long.getLong("loadTest.latency", 20);
+    private static final long STARTUP_DELAY = Long.getLong("loadTest.startupDelay", 1000);
+    private static final double FAILURE_RATE = Double.parseDouble(System.getProperty("loadTest.failureRate", "0"));
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeCloudController fake;
+
+    @After
+    public void uninstallFake() {
+        if (fake != null) {
+            fake.uninstall();
+        }
+    }
+
+    @Test
+    public void testConcurrentDeploys() throws Exception {
+        assumeNotNull(JOBS);
+        int jobs = Integer.parseInt(JOBS);
+
+        fake = new FakeCloudController()
+                .setLatency(LATENCY, TimeUnit.MILLISECONDS)
+                .setStartupDelay(STARTUP_DELAY, TimeUnit.MILLISECONDS)
+                .setFailureRate(FAILURE_RATE);
+        fake.install();
+
+        CredentialsStore store = CredentialsProvider.lookupStores(j.getInstance()).iterator().next();
+        store.addCredentials(Domain.global(),
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "testCredentialsId", "",
+                        "user", "password"));
+        j.getInstance().setNumExecutors(jobs);
+
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < jobs; i++) {
+            FreeStyleProject project = j.createFreeStyleProject("load-" + i);
+            project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+            ManifestChoice manifest = new ManifestChoice("jenkinsConfig", null, "load-app-" + i, 512, "", 0, 0,
+                    false, "target/hello-java-1.0.war", "", "", "", "",
+                    new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
+            project.getPublishersList().add(new CloudFoundryPushPublisher(FakeCloudControllerPushTest.FAKE_TARGET,
+                    "org", "space", "testCredentialsId", false, false, 60, null, manifest, 0, false, 0, false, false,
+                    false));
+            projects.add(project);
+        }
+
+        List<Long> latencies = new ArrayList<Long>();
+        int failures = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            List<Future<FreeStyleBuild>> builds = new ArrayList<Future<FreeStyleBuild>>();
+            for (FreeStyleProject project : projects) {
+                builds.add(project.scheduleBuild2(0));
+            }
+            for (Future<FreeStyleBuild> future : builds) {
+                FreeStyleBuild build = future.get();
+                latencies.add(build.getDuration());
+                if (build.getResult().isWorseThan(Result.SUCCESS)) {
+                    failures++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Collections.sort(latencies);
+        double minutes = elapsed / (double) TimeUnit.MINUTES.toNanos(1);
+        System.out.println("Deploys: " + latencies.size() + " (" + failures + " failed), " + jobs + " concurrent jobs");
+        System.out.println(String.format("Throughput: %.1f deploys per minute", latencies.size() / minutes));
+        System.out.println("Latency p50: " + percentile(latencies, 50) + " ms, p99: " + percentile(latencies, 99)
+                + " ms, max: " + latencies.get(latencies.size() - 1) + " ms");
+        System.out.println("Calls to the Cloud Controller: login " + fake.getCalls("login")
+                + ", getDefaultDomain " + fake.getCalls("getDefaultDomain")
+                + ", getApplicationInstances " + fake.getCalls("getApplicationInstances"));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeployLockManagerTest {
+
+    private final DeployLockManager manager = DeployLockManager.getInstance();
+    private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+    @Test
+    public void testSameAppWaits() throws Exception {
+        String key = DeployLockManager.appKey("https://api.example.com", "org", "space", "hello");
+        DeployLockManager.Lock lock = manager.acquire(key, "job #1", logger);
+
+        final ByteArrayOutputStream waiterLog = new ByteArrayOutputStream();
+        final AtomicReference<DeployLockManager.Lock> acquired = new AtomicReference<DeployLockManager.Lock>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(DeployLockManager.getInstance().acquire(
+                            DeployLockManager.appKey("https://api.example.com", "org", "space", "hello"),
+                            "job #2", new PrintStream(waiterLog, true)));
+                    acquired.get().release();
+                } catch (InterruptedException e) {
+                    // The lock is left to the test
+                }
+                done.countDown();
+            }
+        };
+        waiter.start();
+
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        lock.release();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(acquired.get().getWaitMillis() >= 200);
+        assertTrue(waiterLog.toString().contains("Waiting for the push of the app by job #1 to finish."));
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testOtherAppsDontWait() throws Exception {
+        DeployLockManager.Lock lock = manager.acquire(
+                DeployLockManager.appKey("https://api.example.com", "org", "space", "hello"), "job #1", logger);
+        DeployLockManager.Lock otherApp = manager.acquire(
+                DeployLockManager.appKey("https://api.example.com", "org", "space", "world"), "job #2", logger);
+        DeployLockManager.Lock otherSpace = manager.acquire(
+                DeployLockManager.appKey("https://api.example.com", "org", "other", "hello"), "job #3", logger);
+        assertEquals(3, manager.size());
+        otherSpace.release();
+        otherApp.release();
+        lock.release();
+        // Releasing twice doesn't let another push in
+        lock.release();
+        assertEquals(0, manager.size());
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import hudson.FilePath;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class DeploymentFingerprintTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSameDeploymentSameFingerprint() throws Exception {
+        FilePath appPath = createApp("Hello");
+        String first = fingerprint(appPath, 512, "ONE", "TWO");
+        String second = fingerprint(appPath, 512, "TWO", "ONE");
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testSettingsChangeFingerprint() throws Exception {
+        FilePath appPath = createApp("Hello");
+        String small = fingerprint(appPath, 512, "ONE", "TWO");
+        String large = fingerprint(appPath, 1024, "ONE", "TWO");
+        assertFalse(small.equals(large));
+    }
+
+    @Test
+    public void testFilesChangeFingerprint() throws Exception {
+        FilePath appPath = createApp("Hello");
+        String before = fingerprint(appPath, 512, "ONE", "TWO");
+        appPath.child("index.html").write("Hello again", "UTF-8");
+        String after = fingerprint(appPath, 512, "ONE", "TWO");
+        assertFalse(before.equals(after));
+    }
+
+    private FilePath createApp(String content) throws Exception {
+        FilePath appPath = new FilePath(folder.newFolder());
+        appPath.child("index.html").write(content, "UTF-8");
+        return appPath;
+    }
+
+    private String fingerprint(FilePath appPath, int memory, String firstEnvVar, String secondEnvVar)
+            throws Exception {
+        List<EnvironmentVariable> envVars = new ArrayList<EnvironmentVariable>();
+        envVars.add(new EnvironmentVariable(firstEnvVar, "value"));
+        envVars.add(new EnvironmentVariable(secondEnvVar, "value"));
+        ManifestChoice jenkinsConfig = new ManifestChoice("jenkinsConfig", null, "hello", memory, "hello", 1, 0,
+                false, "", "", "", "", "", envVars, null);
+        DeploymentInfo deploymentInfo = new DeploymentInfo(System.out, jenkinsConfig, "jenkins-build-name", "domain");
+        ApplicationArchive archive = FilePathApplicationArchive.fromDirectory(appPath, null);
+        return DeploymentFingerprint.compute(archive, deploymentInfo, "https://api.example.com", "org", "space");
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DropletPromoterTest {
+
+    private static final String DROPLET = "the staged droplet";
+    private static final String UPDATED_AT = "2015-08-25T19:20:00Z";
+
+    private HttpServer server;
+    private URL controllerUrl;
+    // What the fake Cloud Controller and blobstore were asked
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private volatile String blobAuthorization;
+    private volatile String uploadedBody;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                requests.add(exchange.getRequestMethod() + " " + path);
+                if (path.equals("/v2/apps/source-guid")) {
+                    respond(exchange, 200, "{\"metadata\": {\"guid\": \"source-guid\","
+                            + " \"created_at\": \"2015-08-25T19:19:49Z\", \"updated_at\": \"" + UPDATED_AT + "\"}}");
+                } else if (path.equals("/v2/apps/source-guid/droplet/download")) {
+                    exchange.getResponseHeaders().set("Location", controllerUrl + "/blobstore/droplet");
+                    exchange.sendResponseHeaders(302, -1);
+                    exchange.close();
+                } else if (path.equals("/blobstore/droplet")) {
+                    blobAuthorization = exchange.getRequestHeaders().getFirst("Authorization");
+                    respond(exchange, 200, DROPLET);
+                } else if (path.equals("/v2/apps/target-guid/droplet/upload")) {
+                    uploadedBody = IOUtils.toString(exchange.getRequestBody(), "US-ASCII");
+                    respond(exchange, 201, "{\"metadata\": {\"guid\": \"job-guid\"},"
+                            + " \"entity\": {\"status\": \"queued\"}}");
+                } else if (path.equals("/v2/jobs/job-guid")) {
+                    respond(exchange, 200, "{\"metadata\": {\"guid\": \"job-guid\"},"
+                            + " \"entity\": {\"status\": \"finished\"}}");
+                } else {
+                    respond(exchange, 404, "{\"description\": \"Unknown request\"}");
+                }
+            }
+        });
+        server.start();
+        controllerUrl = new URL("http://localhost:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private DropletPromoter newPromoter() {
+        return new DropletPromoter(controllerUrl, "token", null, false,
+                new CloudControllerThrottle(controllerUrl.toExternalForm(), 1000, 10, 3, 10, 100, 10, 60000));
+    }
+
+    @Test
+    public void testPromote() throws Exception {
+        long size = newPromoter().promote("source-guid", DropletPromoter.parseTimestamp(UPDATED_AT), "target-guid",
+                10000);
+
+        assertEquals(DROPLET.length(), size);
+        // The signed URL of the blobstore is not given the token of the target
+        assertNull(blobAuthorization);
+        assertTrue(uploadedBody.contains("name=\"droplet\""));
+        assertTrue(uploadedBody.contains(DROPLET));
+        assertTrue(requests.contains("GET /v2/jobs/job-guid"));
+    }
+
+    @Test
+    public void testSourceUpdatedSinceUpstreamBuild() throws Exception {
+        try {
+            newPromoter().promote("source-guid", DropletPromoter.parseTimestamp("2015-08-25T19:19:49Z"),
+                    "target-guid", 10000);
+            fail("The droplet of an app that was updated since should not have been promoted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("was updated at " + UPDATED_AT));
+        }
+        assertFalse(requests.contains("GET /v2/apps/source-guid/droplet/download"));
+        assertNull(uploadedBody);
+    }
+
+    @Test
+    public void testErrorDescription() throws Exception {
+        try {
+            newPromoter().promote("unknown-guid", 0, "target-guid", 10000);
+            fail("An unknown app should not have been promoted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Unknown request"));
+        }
+        // Client errors are not retried
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testParseTimestamp() throws Exception {
+        assertEquals(DropletPromoter.parseTimestamp("2015-08-25T19:20:00Z"),
+                DropletPromoter.parseTimestamp("2015-08-25T19:20:00+00:00"));
+        assertEquals(DropletPromoter.parseTimestamp("2015-08-25T19:20:00Z"),
+                DropletPromoter.parseTimestamp("2015-08-25T21:20:00+02:00"));
+    }
+}
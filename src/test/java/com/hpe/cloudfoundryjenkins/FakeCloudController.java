@@ -0,0 +1,437 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Util;
+import org.cloudfoundry.client.lib.ApplicationLogListener;
+import org.cloudfoundry.client.lib.CloudCredentials;
+import org.cloudfoundry.client.lib.CloudFoundryException;
+import org.cloudfoundry.client.lib.HttpProxyConfiguration;
+import org.cloudfoundry.client.lib.StartingInfo;
+import org.cloudfoundry.client.lib.UploadStatusCallback;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.cloudfoundry.client.lib.domain.CloudDomain;
+import org.cloudfoundry.client.lib.domain.CloudEntity;
+import org.cloudfoundry.client.lib.domain.CloudInfo;
+import org.cloudfoundry.client.lib.domain.CloudService;
+import org.cloudfoundry.client.lib.domain.CloudStack;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+import org.cloudfoundry.client.lib.domain.Staging;
+import org.cloudfoundry.client.lib.org.springframework.http.HttpStatus;
+import org.cloudfoundry.client.lib.org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.cloudfoundry.client.lib.rest.CloudControllerClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Cloud Controller and UAA of a single Cloud Foundry space, for offline tests.
+ * It implements the CloudControllerClient interface of the CF client, so the plugin and the CloudFoundryClient
+ * run unchanged, and only the REST calls are replaced by an in-memory model of the space: login, info, domains,
+ * stacks, services, apps, env, bits upload (with the resource matching of the real target), start, instances and
+ * staging logs.
+ * <p>
+ * Every call can be delayed, and can fail at random with a 503 error. Started apps stay STARTING for a while before
+ * they are RUNNING, and some apps can be made to crash.
+ */
+public class FakeCloudController implements InvocationHandler {
+
+    public static final String DOMAIN = "fake.example.com";
+    public static final String STAGING_LOG = "-----> Downloaded app package";
+
+    private volatile long latencyMillis;
+    private volatile double failureRate;
+    private volatile long startupDelayMillis;
+    private final Random random = new Random(42);
+    private final Set<String> crashingApps = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> failingServices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Map<String, FakeApp> apps = new ConcurrentHashMap<String, FakeApp>();
+    private final Map<String, CloudService> services = new ConcurrentHashMap<String, CloudService>();
+    // The SHA-1 digests of the files that were already uploaded, like the resource cache of the target
+    private final Set<String> knownResources = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    /**
+     * Delays every call by the given time, like the round trip to a remote target.
+     */
+    public FakeCloudController setLatency(long latency, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+        return this;
+    }
+
+    /**
+     * Makes the given fraction of the calls fail with a 503 Service Unavailable error.
+     */
+    public FakeCloudController setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * Sets the time the instances of an app stay STARTING after it is started, before they are RUNNING.
+     */
+    public FakeCloudController setStartupDelay(long delay, TimeUnit unit) {
+        this.startupDelayMillis = unit.toMillis(delay);
+        return this;
+    }
+
+    /**
+     * Makes the instances of an app crash when it is started.
+     */
+    public FakeCloudController crashApp(String appName) {
+        crashingApps.add(appName);
+        return this;
+    }
+
+    /**
+     * Makes the instances of an app that was crashing run again.
+     */
+    public FakeCloudController repairApp(String appName) {
+        crashingApps.remove(appName);
+        return this;
+    }
+
+    /**
+     * Makes the creation of a service fail, like a broken service broker.
+     */
+    public FakeCloudController failService(String serviceName) {
+        failingServices.add(serviceName);
+        return this;
+    }
+
+    /**
+     * Makes all the clients of the plugin use this fake, until uninstall() is called.
+     */
+    public void install() {
+        SpaceMetadataCache.getInstance().clear();
+        CloudControllerThrottle.reset();
+        ClientSessionPool.getInstance().setCloudControllerFactory(new ClientSessionPool.CloudControllerFactory() {
+            public CloudControllerClient newCloudController(URL targetUrl, CloudCredentials credentials,
+                                                            String organization, String cloudSpace,
+                                                            HttpProxyConfiguration proxyConfig, boolean selfSigned) {
+                return newClient();
+            }
+        });
+    }
+
+    public void uninstall() {
+        ClientSessionPool.getInstance().setCloudControllerFactory(null);
+        SpaceMetadataCache.getInstance().clear();
+        CloudControllerThrottle.reset();
+    }
+
+    public CloudControllerClient newClient() {
+        return (CloudControllerClient) Proxy.newProxyInstance(CloudControllerClient.class.getClassLoader(),
+                new Class<?>[]{CloudControllerClient.class}, this);
+    }
+
+    public CloudApplication getApp(String appName) {
+        FakeApp app = apps.get(appName);
+        return app == null ? null : app.toCloudApplication();
+    }
+
+    public Map<String, String> getAppEnv(String appName) {
+        FakeApp app = apps.get(appName);
+        return app == null ? null : app.env;
+    }
+
+    public CloudService getService(String serviceName) {
+        return services.get(serviceName);
+    }
+
+    /**
+     * Returns how many times a method of the Cloud Controller client was called.
+     */
+    public int getCalls(String methodName) {
+        AtomicInteger count = calls.get(methodName);
+        return count == null ? 0 : count.get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else {
+                return "FakeCloudController";
+            }
+        }
+
+        calls.putIfAbsent(name, new AtomicInteger());
+        calls.get(name).incrementAndGet();
+
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (failureRate > 0) {
+            boolean fail;
+            synchronized (random) {
+                fail = random.nextDouble() < failureRate;
+            }
+            if (fail) {
+                throw new CloudFoundryException(HttpStatus.SERVICE_UNAVAILABLE, "Injected failure of " + name);
+            }
+        }
+
+        if (name.equals("login")) {
+            DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken("fake-token");
+            token.setExpiration(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+            return token;
+        } else if (name.equals("logout") || name.equals("setResponseErrorHandler")) {
+            return null;
+        } else if (name.equals("getCloudControllerUrl")) {
+            return new URL("https://api." + DOMAIN);
+        } else if (name.equals("getInfo")) {
+            Map<String, Object> info = new HashMap<String, Object>();
+            info.put("name", "fake");
+            info.put("version", 2);
+            info.put("description", "Fake Cloud Controller");
+            return new CloudInfo(info);
+        } else if (name.equals("getDefaultDomain")) {
+            return new CloudDomain(null, DOMAIN, null);
+        } else if (name.equals("getStack")) {
+            String stack = (String) args[0];
+            return stack.equals("cflinuxfs2") ? new CloudStack(null, stack, "Fake stack") : null;
+        } else if (name.equals("getStacks")) {
+            return Collections.singletonList(new CloudStack(null, "cflinuxfs2", "Fake stack"));
+        } else if (name.equals("getServices")) {
+            return new ArrayList<CloudService>(services.values());
+        } else if (name.equals("getService")) {
+            return services.get((String) args[0]);
+        } else if (name.equals("createService")) {
+            CloudService service = (CloudService) args[0];
+            if (failingServices.contains(service.getName())) {
+                throw new CloudFoundryException(HttpStatus.BAD_GATEWAY, "Service broker error");
+            }
+            services.put(service.getName(), service);
+            return null;
+        } else if (name.equals("deleteService")) {
+            services.remove((String) args[0]);
+            return null;
+        } else if (name.equals("getApplications")) {
+            List<CloudApplication> result = new ArrayList<CloudApplication>();
+            for (FakeApp app : apps.values()) {
+                result.add(app.toCloudApplication());
+            }
+            return result;
+        } else if (name.equals("getApplication") && args[0] instanceof String) {
+            return findApp((String) args[0]).toCloudApplication();
+        } else if (name.equals("createApplication")) {
+            String appName = (String) args[0];
+            // The memory is the last Integer before the URIs, with or without the disk quota
+            Integer memory = (Integer) args[args.length - 3];
+            @SuppressWarnings("unchecked")
+            List<String> uris = (List<String>) args[args.length - 2];
+            @SuppressWarnings("unchecked")
+            List<String> serviceNames = (List<String>) args[args.length - 1];
+            apps.put(appName, new FakeApp(appName, (Staging) args[1], memory == null ? 1024 : memory, uris,
+                    serviceNames));
+            return null;
+        } else if (name.equals("deleteApplication")) {
+            apps.remove((String) args[0]);
+            return null;
+        } else if (name.equals("updateApplicationUris")) {
+            @SuppressWarnings("unchecked")
+            List<String> uris = (List<String>) args[1];
+            findApp((String) args[0]).uris = new ArrayList<String>(uris);
+            return null;
+        } else if (name.equals("updateApplicationEnv") && args[1] instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, String> env = (Map<String, String>) args[1];
+            findApp((String) args[0]).env = new HashMap<String, String>(env);
+            return null;
+        } else if (name.equals("getApplicationEnvironment")) {
+            Map<String, Object> environment = new HashMap<String, Object>();
+            environment.put("environment_json", new HashMap<String, String>(findApp((String) args[0]).env));
+            return environment;
+        } else if (name.equals("updateApplicationInstances")) {
+            findApp((String) args[0]).instances = (Integer) args[1];
+            return null;
+        } else if (name.equals("updateApplicationMemory")) {
+            findApp((String) args[0]).memory = (Integer) args[1];
+            return null;
+        } else if (name.equals("updateApplicationServices")) {
+            @SuppressWarnings("unchecked")
+            List<String> serviceNames = (List<String>) args[1];
+            findApp((String) args[0]).services = new ArrayList<String>(serviceNames);
+            return null;
+        } else if (name.equals("updateApplicationStaging")) {
+            findApp((String) args[0]).staging = (Staging) args[1];
+            return null;
+        } else if (name.equals("uploadApplication") && args[1] instanceof ApplicationArchive) {
+            upload(findApp((String) args[0]), (ApplicationArchive) args[1],
+                    args.length > 2 ? (UploadStatusCallback) args[2] : null);
+            return null;
+        } else if (name.equals("startApplication") || name.equals("restartApplication")) {
+            FakeApp app = findApp((String) args[0]);
+            app.state = CloudApplication.AppState.STARTED;
+            app.startedAt = System.currentTimeMillis();
+            return new StartingInfo("staging_log");
+        } else if (name.equals("stopApplication")) {
+            findApp((String) args[0]).state = CloudApplication.AppState.STOPPED;
+            return null;
+        } else if (name.equals("streamLogs")) {
+            String appName = (String) args[0];
+            ApplicationLogListener logListener = (ApplicationLogListener) args[1];
+            logListener.onMessage(new ApplicationLog(appName, STAGING_LOG, new Date(),
+                    ApplicationLog.MessageType.STDOUT, "STG", "0"));
+            logListener.onComplete();
+            return null;
+        } else if (name.equals("getStagingLogs")) {
+            return null;
+        } else if (name.equals("getApplicationInstances")) {
+            String appName = args[0] instanceof CloudApplication
+                    ? ((CloudApplication) args[0]).getName() : (String) args[0];
+            return findApp(appName).getInstancesInfo();
+        }
+        throw new UnsupportedOperationException("Not implemented by the fake Cloud Controller: " + method);
+    }
+
+    private FakeApp findApp(String appName) {
+        FakeApp app = apps.get(appName);
+        if (app == null) {
+            throw new CloudFoundryException(HttpStatus.NOT_FOUND, "Not Found", "Application not found");
+        }
+        return app;
+    }
+
+    /**
+     * Reads only the files that are not known yet, like the real target after its resource matching, and checks
+     * that their contents match their digests.
+     */
+    private void upload(FakeApp app, ApplicationArchive archive, UploadStatusCallback callback) throws IOException {
+        Set<String> matchedFileNames = new HashSet<String>();
+        List<ApplicationArchive.Entry> unmatched = new ArrayList<ApplicationArchive.Entry>();
+        for (ApplicationArchive.Entry entry : archive.getEntries()) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            if (knownResources.contains(Util.toHexString(entry.getSha1Digest()))) {
+                matchedFileNames.add(entry.getName());
+            } else {
+                unmatched.add(entry);
+            }
+        }
+        if (callback != null) {
+            callback.onMatchedFileNames(matchedFileNames);
+        }
+
+        byte[] buffer = new byte[8192];
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        for (ApplicationArchive.Entry entry : unmatched) {
+            digest.reset();
+            InputStream in = entry.getInputStream();
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                    uploadedBytes.addAndGet(n);
+                }
+            } finally {
+                in.close();
+            }
+            if (!Arrays.equals(digest.digest(), entry.getSha1Digest())) {
+                throw new CloudFoundryException(HttpStatus.UNPROCESSABLE_ENTITY, "Unprocessable Entity",
+                        "The contents of " + entry.getName() + " do not match its digest");
+            }
+            knownResources.add(Util.toHexString(entry.getSha1Digest()));
+        }
+    }
+
+    private class FakeApp {
+
+        private final String name;
+        private final UUID guid = UUID.randomUUID();
+        private final Date created = new Date();
+        private volatile Staging staging;
+        private volatile int memory;
+        private volatile int instances = 1;
+        private volatile List<String> uris;
+        private volatile List<String> services;
+        private volatile Map<String, String> env = new HashMap<String, String>();
+        private volatile CloudApplication.AppState state = CloudApplication.AppState.STOPPED;
+        private volatile long startedAt;
+
+        FakeApp(String name, Staging staging, int memory, List<String> uris, List<String> services) {
+            this.name = name;
+            this.staging = staging;
+            this.memory = memory;
+            this.uris = uris == null ? new ArrayList<String>() : new ArrayList<String>(uris);
+            this.services = services == null ? new ArrayList<String>() : new ArrayList<String>(services);
+        }
+
+        private String getInstanceState() {
+            if (state != CloudApplication.AppState.STARTED) {
+                return null;
+            }
+            if (System.currentTimeMillis() - startedAt < startupDelayMillis) {
+                return "STARTING";
+            }
+            return crashingApps.contains(name) ? "CRASHED" : "RUNNING";
+        }
+
+        InstancesInfo getInstancesInfo() {
+            String instanceState = getInstanceState();
+            if (instanceState == null) {
+                return null;
+            }
+            List<Map<String, Object>> attributes = new ArrayList<Map<String, Object>>();
+            for (int i = 0; i < instances; i++) {
+                Map<String, Object> instance = new HashMap<String, Object>();
+                instance.put("index", i);
+                instance.put("since", startedAt / 1000);
+                instance.put("state", instanceState);
+                attributes.add(instance);
+            }
+            return new InstancesInfo(attributes);
+        }
+
+        CloudApplication toCloudApplication() {
+            CloudApplication app = new CloudApplication(name, staging == null ? null : staging.getCommand(),
+                    staging == null ? null : staging.getBuildpackUrl(), memory, instances, uris, services, state);
+            app.setRunningInstances("RUNNING".equals(getInstanceState()) ? instances : 0);
+            app.setMeta(new CloudEntity.Meta(guid, created, null));
+            return app;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.Service;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.apache.commons.io.FileUtils;
+import org.cloudfoundry.client.lib.domain.CloudApplication;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.ExtractResourceSCM;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the whole publisher against the fake Cloud Controller, with no Cloud Foundry target.
+ */
+public class FakeCloudControllerPushTest {
+
+    static final String FAKE_TARGET = "https://api." + FakeCloudController.DOMAIN;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FakeCloudController fake;
+
+    @Before
+    public void installFake() throws Exception {
+        fake = new FakeCloudController();
+        fake.install();
+
+        CredentialsStore store = CredentialsProvider.lookupStores(j.getInstance()).iterator().next();
+        store.addCredentials(Domain.global(),
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "testCredentialsId", "",
+                        "user", "password"));
+    }
+
+    @After
+    public void uninstallFake() {
+        fake.uninstall();
+    }
+
+    @Test
+    public void testPushManifestFile() throws Exception {
+        FreeStyleBuild build = push(newPublisher(false));
+        String log = FileUtils.readFileToString(build.getLogFile());
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertTrue("Build did not display staging logs", log.contains(FakeCloudController.STAGING_LOG));
+        CloudApplication app = fake.getApp("hello-java");
+        assertNotNull("App was not created", app);
+        assertEquals(512, app.getMemory());
+        assertEquals(CloudApplication.AppState.STARTED, app.getState());
+        assertTrue("App bits were not uploaded", fake.getUploadedBytes() > 0);
+        assertNotNull("Phase timings were not recorded", build.getAction(DeploymentTimingAction.class));
+        assertEquals("https://hello-java." + FakeCloudController.DOMAIN,
+                build.getAction(DeploymentResultAction.class).getAppURIs().get(0));
+    }
+
+    @Test
+    public void testPushWaitsForStartup() throws Exception {
+        fake.setStartupDelay(2, TimeUnit.SECONDS);
+        FreeStyleBuild build = push(newPublisher(false));
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertTrue("App instances were not polled", fake.getCalls("getApplicationInstances") > 1);
+    }
+
+    @Test
+    public void testPushCrashedApp() throws Exception {
+        fake.crashApp("hello-java");
+        FreeStyleBuild build = push(newPublisher(false));
+        String log = FileUtils.readFileToString(build.getLogFile());
+
+        assertEquals(Result.FAILURE, build.getResult());
+        assertTrue("Build did not report the crash", log.contains("CRASHED"));
+    }
+
+    @Test
+    public void testSkipUnchanged() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(newPublisher(true));
+
+        FreeStyleBuild first = project.scheduleBuild2(0).get();
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        FreeStyleBuild second = project.scheduleBuild2(0).get();
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        String log = FileUtils.readFileToString(second.getLogFile());
+        assertTrue("Unchanged app was pushed again", log.contains("skipping push"));
+        assertEquals(1, fake.getCalls("uploadApplication"));
+    }
+
+    @Test
+    public void testPushRunOnAgent() throws Exception {
+        // The workspace is on the master, the fake is only installed in this JVM
+        CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space",
+                "testCredentialsId", false, false, 10, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                true, false, false);
+        FreeStyleBuild build = push(cf);
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertNotNull("App was not created", fake.getApp("hello-java"));
+        assertTrue("Push phases were not recorded",
+                build.getAction(DeploymentTimingAction.class).getTotals()
+                        .containsKey(DeploymentTimingAction.Phase.UPLOAD));
+    }
+
+    @Test
+    public void testPushFromAgentWorkspace() throws Exception {
+        // The files the target does not have are streamed from the agent together, and must match their digests
+        FreeStyleBuild warBuild = pushOnAgent(newPublisher(false));
+        assertTrue("War build did not succeed", warBuild.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        long warBytes = fake.getUploadedBytes();
+        assertEquals("Not all the entries of the war were uploaded", 4298, warBytes);
+
+        ManifestChoice manifest = new ManifestChoice("jenkinsConfig", null, "hello-java", 512, "", 1, 0,
+                false, "", "", "", "", "", new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
+        FreeStyleBuild directoryBuild = pushOnAgent(new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space",
+                "testCredentialsId", false, false, 10, null, manifest, 0, false, 0, false, false, false));
+        assertTrue("Directory build did not succeed", directoryBuild.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertEquals("Not all the files of the workspace were uploaded", 4096 + 87,
+                fake.getUploadedBytes() - warBytes);
+    }
+
+    @Test
+    public void testCreateServices() throws Exception {
+        List<Service> services = new ArrayList<Service>();
+        services.add(new Service("mysql-test", "mysql", "free", false));
+        services.add(new Service("redis-test", "redis", "free", false));
+        CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space",
+                "testCredentialsId", false, false, 10, services, ManifestChoice.defaultManifestFileConfig(), 0, false,
+                0, false, false, false);
+        FreeStyleBuild build = push(cf);
+        String log = FileUtils.readFileToString(build.getLogFile());
+
+        assertTrue("Build did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertNotNull("Service was not created", fake.getService("mysql-test"));
+        assertNotNull("Service was not created", fake.getService("redis-test"));
+        assertTrue("Service was not awaited", log.contains("Service mysql-test created."));
+    }
+
+    @Test
+    public void testUnboundServiceFailureFailsBuild() throws Exception {
+        fake.failService("redis-test");
+        List<Service> services = new ArrayList<Service>();
+        services.add(new Service("redis-test", "redis", "free", false));
+        FreeStyleBuild build = push(new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space",
+                "testCredentialsId", false, false, 10, services, ManifestChoice.defaultManifestFileConfig(), 0, false,
+                0, false, false, false));
+        String log = FileUtils.readFileToString(build.getLogFile());
+
+        // The app was pushed, since it doesn't bind the service
+        assertNotNull("App was not created", fake.getApp("hello-java"));
+        assertEquals(Result.FAILURE, build.getResult());
+        assertTrue("Service failure was not reported", log.contains("Some services could not be created."));
+    }
+
+    @Test
+    public void testScaleOnly() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(newScaledPublisher(1));
+        FreeStyleBuild first = project.scheduleBuild2(0).get();
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        project.getPublishersList().clear();
+        project.getPublishersList().add(newScaledPublisher(3));
+        FreeStyleBuild second = project.scheduleBuild2(0).get();
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        String log = FileUtils.readFileToString(second.getLogFile());
+        assertTrue("App was not scaled in place", log.contains("scale in place"));
+        assertEquals(3, fake.getApp("hello-java").getInstances());
+        assertEquals(1, fake.getCalls("uploadApplication"));
+        assertEquals(0, fake.getCalls("restartApplication"));
+    }
+
+    @Test
+    public void testOtherSpaceGetsBits() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(newScaledPublisher(1));
+        FreeStyleBuild first = project.scheduleBuild2(0).get();
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        // The bits digest of the first space says nothing about the app of another space
+        project.getPublishersList().clear();
+        project.getPublishersList().add(new CloudFoundryPushPublisher(FAKE_TARGET, "org", "other-space",
+                "testCredentialsId", false, false, 10, null, ManifestChoice.defaultManifestFileConfig(), 0, true, 0,
+                false, false, false));
+        FreeStyleBuild second = project.scheduleBuild2(0).get();
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertEquals(2, fake.getCalls("uploadApplication"));
+    }
+
+    @Test
+    public void testFailedAttemptIsPushedAgain() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(newScaledPublisher(1));
+        FreeStyleBuild first = project.scheduleBuild2(0).get();
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        fake.crashApp("hello-java");
+        project.getPublishersList().clear();
+        project.getPublishersList().add(newScaledPublisher(3));
+        FreeStyleBuild second = project.scheduleBuild2(0).get();
+        assertEquals(Result.FAILURE, second.getResult());
+
+        // The failed build is the last one that deployed the app, so what the first one left is not trusted
+        fake.repairApp("hello-java");
+        FreeStyleBuild third = project.scheduleBuild2(0).get();
+        assertTrue("Third build did not succeed", third.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        assertEquals(2, fake.getCalls("uploadApplication"));
+    }
+
+    @Test
+    public void testSupersededByNewerBuild() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        CloudFoundryPushPublisher cf = new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space",
+                "testCredentialsId", false, false, 10, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0,
+                false, true, false);
+        project.getPublishersList().add(cf);
+
+        FreeStyleBuild first = project.scheduleBuild2(0).get();
+        FreeStyleBuild second = project.scheduleBuild2(0).get();
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        assertEquals(second.getNumber(), DeployCoalescing.findSupersedingBuild(first, cf, "hello-java"));
+        assertEquals(0, DeployCoalescing.findSupersedingBuild(second, cf, "hello-java"));
+        assertEquals(0, DeployCoalescing.findSupersedingBuild(first, cf, "other-app"));
+    }
+
+    @Test
+    public void testSpaceMetadataIsShared() throws Exception {
+        FreeStyleBuild first = push(newPublisher(false));
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        FreeStyleBuild second = push(newPublisher(false));
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        assertEquals(1, fake.getCalls("getDefaultDomain"));
+    }
+
+    @Test
+    public void testSpaceMetadataIsNotSharedAcrossUsers() throws Exception {
+        CredentialsStore store = CredentialsProvider.lookupStores(j.getInstance()).iterator().next();
+        store.addCredentials(Domain.global(),
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, "otherCredentialsId", "",
+                        "other-user", "password"));
+        FreeStyleBuild first = push(newPublisher(false));
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        FreeStyleBuild second = push(new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space", "otherCredentialsId",
+                false, false, 10, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0, false, false, false));
+        assertTrue("Second build did not succeed", second.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        // Another user may not see the same space, so it reads the metadata itself
+        assertEquals(2, fake.getCalls("getDefaultDomain"));
+    }
+
+    @Test
+    public void testPromotionFindsUpstreamApp() throws Exception {
+        FreeStyleBuild upstream = push(newPublisher(false));
+        assertTrue("Upstream build did not succeed", upstream.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+        // Only the cause of the downstream build is needed to find the app
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild downstream = project.scheduleBuild2(0, new Cause.UpstreamCause(upstream)).get();
+
+        CloudApplication app = fake.getApp("hello-java");
+        DeploymentResultAction.AppDeployment deployment =
+                DropletPromoter.findUpstreamDeployment(downstream, "hello-java");
+        assertEquals(app.getMeta().getGuid().toString(), deployment.getGuid());
+        assertEquals(FAKE_TARGET, deployment.getTarget());
+        assertEquals(DropletPromoter.getUpdatedAt(app.getMeta()), deployment.getUpdatedAt());
+        assertTrue(deployment.getUpdatedAt() > 0);
+        assertNull(DropletPromoter.findUpstreamDeployment(downstream, "other-app"));
+    }
+
+    @Test
+    public void testPromotionOfUnchangedUpstreamApp() throws Exception {
+        FreeStyleProject upstreamProject = j.createFreeStyleProject();
+        upstreamProject.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        upstreamProject.getPublishersList().add(newPublisher(true));
+        FreeStyleBuild first = upstreamProject.scheduleBuild2(0).get();
+        assertTrue("First build did not succeed", first.getResult().isBetterOrEqualTo(Result.SUCCESS));
+        FreeStyleBuild upstream = upstreamProject.scheduleBuild2(0).get();
+        assertTrue("Upstream build did not skip the push",
+                FileUtils.readFileToString(upstream.getLogFile()).contains("skipping push"));
+
+        // The skipped push still reports the running app, for its droplet to be promoted
+        FreeStyleProject project = j.createFreeStyleProject();
+        FreeStyleBuild downstream = project.scheduleBuild2(0, new Cause.UpstreamCause(upstream)).get();
+
+        CloudApplication app = fake.getApp("hello-java");
+        DeploymentResultAction.AppDeployment deployment =
+                DropletPromoter.findUpstreamDeployment(downstream, "hello-java");
+        assertNotNull("Skipped app was not found", deployment);
+        assertEquals(app.getMeta().getGuid().toString(), deployment.getGuid());
+        assertEquals(DropletPromoter.getUpdatedAt(app.getMeta()), deployment.getUpdatedAt());
+        assertEquals(app.getInstances(), deployment.getTotalInstances());
+        assertEquals(app.getInstances(), deployment.getRunningInstances());
+    }
+
+    @Test
+    public void testPromotionWithoutUpstreamBuild() throws Exception {
+        FreeStyleBuild build = push(new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space", "testCredentialsId",
+                false, false, 10, null, ManifestChoice.defaultManifestFileConfig(), 0, false, 0, false, false, true));
+        assertEquals(Result.FAILURE, build.getResult());
+
+        String log = FileUtils.readFileToString(build.getLogFile());
+        assertTrue("Missing upstream build was not reported", log.contains("there is no droplet to promote"));
+        assertEquals(0, fake.getCalls("uploadApplication"));
+    }
+
+    private FreeStyleBuild push(CloudFoundryPushPublisher cf) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(cf);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        System.out.println(FileUtils.readFileToString(build.getLogFile()));
+        return build;
+    }
+
+    private FreeStyleBuild pushOnAgent(CloudFoundryPushPublisher cf) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.setAssignedNode(j.createOnlineSlave());
+        project.setScm(new ExtractResourceSCM(getClass().getResource("hello-java.zip")));
+        project.getPublishersList().add(cf);
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        System.out.println(FileUtils.readFileToString(build.getLogFile()));
+        return build;
+    }
+
+    private static CloudFoundryPushPublisher newScaledPublisher(int instances) {
+        ManifestChoice manifest = new ManifestChoice("jenkinsConfig", null, "hello-java", 512, "", instances, 0,
+                false, "target/hello-java-1.0.war", "", "", "", "",
+                new ArrayList<EnvironmentVariable>(), new ArrayList<ServiceName>());
+        // The bits are only known to be on the target when unchanged apps are skipped
+        return new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space", "testCredentialsId", false, false, 10,
+                null, manifest, 0, true, 0, false, false, false);
+    }
+
+    private static CloudFoundryPushPublisher newPublisher(boolean skipUnchanged) {
+        return new CloudFoundryPushPublisher(FAKE_TARGET, "org", "space", "testCredentialsId", false, false, 10,
+                null, ManifestChoice.defaultManifestFileConfig(), 0, skipUnchanged, 0, false, false, false);
+    }
+}
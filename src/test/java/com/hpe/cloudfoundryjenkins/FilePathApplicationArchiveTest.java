@@ -0,0 +1,146 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.Functions;
+import org.apache.commons.io.IOUtils;
+import org.cloudfoundry.client.lib.archive.ApplicationArchive;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilePathApplicationArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFromDirectory() throws Exception {
+        File root = folder.newFolder("app");
+        FilePath appPath = new FilePath(root);
+        appPath.child("index.html").write("Hello", "UTF-8");
+        appPath.child("lib/module.js").write("module.exports = 42;", "UTF-8");
+
+        ApplicationArchive archive = FilePathApplicationArchive.fromDirectory(appPath, null);
+        assertEquals("app", archive.getFilename());
+
+        List<ApplicationArchive.Entry> entries = new ArrayList<ApplicationArchive.Entry>();
+        for (ApplicationArchive.Entry entry : archive.getEntries()) {
+            entries.add(entry);
+        }
+        assertEquals(3, entries.size());
+
+        ApplicationArchive.Entry file = entries.get(0);
+        assertEquals("index.html", file.getName());
+        assertFalse(file.isDirectory());
+        assertEquals(5, file.getSize());
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest("Hello".getBytes("UTF-8")),
+                file.getSha1Digest());
+        InputStream inputStream = file.getInputStream();
+        try {
+            assertEquals("Hello", IOUtils.toString(inputStream, "UTF-8"));
+        } finally {
+            inputStream.close();
+        }
+
+        ApplicationArchive.Entry directory = entries.get(1);
+        assertEquals("lib/", directory.getName());
+        assertTrue(directory.isDirectory());
+        assertNull(directory.getInputStream());
+
+        assertEquals("lib/module.js", entries.get(2).getName());
+    }
+
+    @Test
+    public void testFromDirectoryWithIndex() throws Exception {
+        FilePath appPath = new FilePath(folder.newFolder("app"));
+        FilePath indexFile = new FilePath(folder.getRoot()).child("index/app.index");
+        FilePath file = appPath.child("index.html");
+        file.write("Hello", "UTF-8");
+        long lastModified = System.currentTimeMillis() - 3600 * 1000;
+        file.touch(lastModified);
+
+        byte[] firstDigest = firstEntry(FilePathApplicationArchive.fromDirectory(appPath, indexFile)).getSha1Digest();
+        assertTrue("Index file was not written", indexFile.exists());
+
+        // Same size and modification time: the digest comes from the index, and the file is not read again
+        file.write("Howdy", "UTF-8");
+        file.touch(lastModified);
+        assertArrayEquals(firstDigest,
+                firstEntry(FilePathApplicationArchive.fromDirectory(appPath, indexFile)).getSha1Digest());
+
+        // A new modification time makes the file be hashed again
+        file.touch(lastModified + 1000);
+        assertArrayEquals(MessageDigest.getInstance("SHA-1").digest("Howdy".getBytes("UTF-8")),
+                firstEntry(FilePathApplicationArchive.fromDirectory(appPath, indexFile)).getSha1Digest());
+    }
+
+    @Test
+    public void testFromDirectoryWithSymlinks() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        File root = folder.newFolder("app");
+        FilePath appPath = new FilePath(root);
+        appPath.child("index.html").write("Hello", "UTF-8");
+        appPath.child("lib").mkdirs();
+        File shared = folder.newFolder("shared");
+        new FilePath(shared).child("module.js").write("module.exports = 42;", "UTF-8");
+        // A link to another directory is followed, a link to a directory that contains it is not
+        Files.createSymbolicLink(new File(root, "lib/shared").toPath(), shared.toPath());
+        Files.createSymbolicLink(new File(root, "lib/loop").toPath(), root.toPath());
+
+        List<String> names = new ArrayList<String>();
+        for (ApplicationArchive.Entry entry : FilePathApplicationArchive.fromDirectory(appPath, null).getEntries()) {
+            names.add(entry.getName());
+        }
+        assertEquals(Arrays.asList("index.html", "lib/", "lib/shared/", "lib/shared/module.js"), names);
+    }
+
+    private static ApplicationArchive.Entry firstEntry(ApplicationArchive archive) {
+        return archive.getEntries().iterator().next();
+    }
+
+    @Test
+    public void testFromZipFile() throws Exception {
+        File zip = new File(getClass().getResource("hello-java.zip").toURI());
+        FilePath zipPath = new FilePath(zip);
+
+        ApplicationArchive archive = FilePathApplicationArchive.fromZipFile(zipPath);
+        assertEquals("hello-java.zip", archive.getFilename());
+
+        boolean foundFile = false;
+        for (ApplicationArchive.Entry entry : archive.getEntries()) {
+            if (entry.isDirectory()) {
+                assertTrue(entry.getName().endsWith("/"));
+                continue;
+            }
+            foundFile = true;
+            InputStream inputStream = entry.getInputStream();
+            try {
+                byte[] content = IOUtils.toByteArray(inputStream);
+                assertEquals(entry.getSize(), content.length);
+                assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(content), entry.getSha1Digest());
+            } finally {
+                inputStream.close();
+            }
+        }
+        assertTrue("Zip file had no entries", foundFile);
+    }
+}
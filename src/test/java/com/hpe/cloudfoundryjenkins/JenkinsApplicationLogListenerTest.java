@@ -0,0 +1,120 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.StreamBuildListener;
+import org.cloudfoundry.client.lib.domain.ApplicationLog;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class JenkinsApplicationLogListenerTest {
+
+    @Test
+    public void testAllLinesWrittenInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(
+                new StreamBuildListener(out, Charset.forName("UTF-8")), 4,
+                JenkinsApplicationLogListener.OverflowPolicy.BLOCK, 0);
+        for (int i = 0; i < 1000; i++) {
+            logListener.onMessage(log("line " + i));
+        }
+        logListener.close();
+
+        String[] lines = out.toString("UTF-8").trim().split("\\r?\\n");
+        assertEquals(1000, lines.length);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("line " + i, lines[i]);
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(
+                new StreamBuildListener(out, Charset.forName("UTF-8")), 100,
+                JenkinsApplicationLogListener.OverflowPolicy.BLOCK, 10);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            logListener.onMessage(log("line " + i));
+        }
+        logListener.close();
+
+        String log = out.toString("UTF-8");
+        if (System.currentTimeMillis() - start < 1000) {
+            assertTrue("Skipped lines were not reported: " + log, log.contains("40 log lines were skipped"));
+        }
+        assertTrue(log.contains("line 9"));
+    }
+
+    @Test
+    public void testSpilledLinesWrittenOnClose() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CountDownLatch logAvailable = new CountDownLatch(1);
+        // The build log is stuck until the lines were spilled
+        OutputStream stuckOut = new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    logAvailable.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.write(b);
+            }
+        };
+        JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(
+                new StreamBuildListener(stuckOut, Charset.forName("UTF-8")), 2,
+                JenkinsApplicationLogListener.OverflowPolicy.SPILL, 0);
+        for (int i = 0; i < 100; i++) {
+            logListener.onMessage(log("line " + i));
+        }
+        File spillFile = logListener.getSpillFile();
+        assertNotNull("No line was spilled", spillFile);
+        logAvailable.countDown();
+        logListener.close();
+
+        String log = out.toString("UTF-8");
+        for (int i = 0; i < 100; i++) {
+            assertTrue("Missing line " + i, log.contains("line " + i + "\n") || log.contains("line " + i + "\r"));
+        }
+        assertTrue(log.contains("log lines were held back"));
+        assertFalse("The spilled lines were not deleted", spillFile.exists());
+    }
+
+    @Test
+    public void testLinesAfterCloseDropped() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JenkinsApplicationLogListener logListener = new JenkinsApplicationLogListener(
+                new StreamBuildListener(out, Charset.forName("UTF-8")), 100,
+                JenkinsApplicationLogListener.OverflowPolicy.BLOCK, 0);
+        logListener.onMessage(log("before"));
+        logListener.close();
+        logListener.onMessage(log("after"));
+        // Gives a writer the time to write the line, if it was queued
+        Thread.sleep(200);
+
+        String log = out.toString("UTF-8");
+        assertTrue(log.contains("before"));
+        assertFalse(log.contains("after"));
+    }
+
+    private static ApplicationLog log(String message) {
+        return new ApplicationLog("app-id", message, new Date(), ApplicationLog.MessageType.STDOUT, "STG", "0");
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelPusherTest {
+
+    /**
+     * Fails the first app with an exception, and pushes the others.
+     */
+    private static class FailingFirstPush implements ParallelPusher.AppPush {
+
+        private final List<String> pushed = Collections.synchronizedList(new ArrayList<String>());
+
+        public boolean push(DeploymentInfo deploymentInfo, BuildListener appListener) throws IOException {
+            if (deploymentInfo.getAppName().equals("app-1")) {
+                throw new IOException("Connection reset");
+            }
+            pushed.add(deploymentInfo.getAppName());
+            return true;
+        }
+    }
+
+    @Test
+    public void testExceptionDoesNotAbortSequentialPushes() throws Exception {
+        checkExceptionDoesNotAbortPushes(1);
+    }
+
+    @Test
+    public void testExceptionDoesNotAbortParallelPushes() throws Exception {
+        checkExceptionDoesNotAbortPushes(3);
+    }
+
+    private static void checkExceptionDoesNotAbortPushes(int workers) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BuildListener listener = new StreamBuildListener(out, Charset.forName("UTF-8"));
+        FailingFirstPush appPush = new FailingFirstPush();
+
+        boolean success = new ParallelPusher(workers, listener).pushAll(apps("app-1", "app-2", "app-3"), appPush);
+
+        assertFalse(success);
+        assertEquals(2, appPush.pushed.size());
+        String log = out.toString("UTF-8");
+        assertTrue(log, log.contains("ERROR: IOException: Connection reset"));
+        assertTrue(log, log.contains("app-1: FAILED"));
+        assertTrue(log, log.contains("app-3: success"));
+    }
+
+    private static List<DeploymentInfo> apps(String... names) throws Exception {
+        List<DeploymentInfo> apps = new ArrayList<DeploymentInfo>();
+        for (String name : names) {
+            Map<String, Object> appInfo = new HashMap<String, Object>();
+            appInfo.put("name", name);
+            apps.add(new DeploymentInfo(System.out, appInfo, "jenkins-build-name", "domain-name", ""));
+        }
+        return apps;
+    }
+}
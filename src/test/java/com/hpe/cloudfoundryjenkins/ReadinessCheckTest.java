@@ -0,0 +1,87 @@
+/**
+ * © Copyright 2015 Hewlett Packard Enterprise Development LP
+ */
+
+package com.hpe.cloudfoundryjenkins;
+
+import org.cloudfoundry.client.lib.domain.InstanceState;
+import org.cloudfoundry.client.lib.domain.InstancesInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadinessCheckTest {
+
+    @Test
+    public void testAllInstancesRunning() {
+        ReadinessCheck check = new ReadinessCheck("app", 0, 60000);
+        assertEquals(ReadinessCheck.Status.PENDING, check.update(null));
+        assertEquals(ReadinessCheck.Status.PENDING, check.update(instances("RUNNING", "STARTING")));
+        assertEquals(ReadinessCheck.Status.READY, check.update(instances("RUNNING", "RUNNING")));
+        assertEquals(2, check.getRunning());
+        assertEquals(2, check.getTotal());
+    }
+
+    @Test
+    public void testEnoughInstancesRunning() {
+        ReadinessCheck check = new ReadinessCheck("app", 2, 60000);
+        assertEquals(ReadinessCheck.Status.READY, check.update(instances("RUNNING", "RUNNING", "STARTING")));
+    }
+
+    @Test
+    public void testCrashedInstanceFailsImmediately() {
+        ReadinessCheck check = new ReadinessCheck("app", 0, 60000);
+        assertEquals(ReadinessCheck.Status.FAILED, check.update(instances("RUNNING", "CRASHED")));
+        assertEquals(InstanceState.CRASHED, check.getFailedState());
+    }
+
+    @Test
+    public void testStagedWhenInstancesKnown() throws Exception {
+        ReadinessCheck check = new ReadinessCheck("app", 0, 60000);
+        check.update(null);
+        assertEquals(0, check.getStagedNanos());
+        long beforeStaged = System.nanoTime();
+        check.update(instances("STARTING"));
+        long staged = check.getStagedNanos();
+        assertTrue(staged >= beforeStaged);
+        Thread.sleep(10);
+        check.update(instances("RUNNING"));
+        assertEquals(staged, check.getStagedNanos());
+    }
+
+    @Test
+    public void testTimeout() {
+        ReadinessCheck check = new ReadinessCheck("app", 0, 0);
+        assertEquals(ReadinessCheck.Status.TIMED_OUT, check.update(instances("STARTING")));
+    }
+
+    @Test
+    public void testDelayBackOff() {
+        ReadinessCheck check = new ReadinessCheck("app", 0, 60000);
+        long first = check.nextDelayMillis();
+        for (int i = 0; i < 20; i++) {
+            check.nextDelayMillis();
+        }
+        long last = check.nextDelayMillis();
+        assertTrue("Delay did not grow", last > first);
+        assertTrue("Delay is not capped", last <= 6000);
+    }
+
+    private static InstancesInfo instances(String... states) {
+        List<Map<String, Object>> attributes = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < states.length; i++) {
+            Map<String, Object> instance = new HashMap<String, Object>();
+            instance.put("index", i);
+            instance.put("since", System.currentTimeMillis() / 1000);
+            instance.put("state", states[i]);
+            attributes.add(instance);
+        }
+        return new InstancesInfo(attributes);
+    }
+}